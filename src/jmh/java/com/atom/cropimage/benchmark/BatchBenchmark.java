@@ -0,0 +1,239 @@
+package com.atom.cropimage.benchmark;
+
+import com.atom.cropimage.action.AsyncScaleImagePipeline;
+import com.atom.cropimage.action.ScaleImageAction;
+import com.atom.cropimage.action.StagedScaleImagePipeline;
+import com.atom.cropimage.utils.AwsS3Util;
+import com.atom.cropimage.utils.CheckpointManifest;
+import com.atom.cropimage.utils.ExposedByteArrayOutputStream;
+import com.atom.cropimage.utils.FileUtil;
+import com.atom.cropimage.utils.ImageScaleUtil;
+import com.atom.cropimage.utils.ScaleMetrics;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * end to end run of the batch strategies of {@link com.atom.cropimage.App} against {@link LocalS3Server},
+ * so they can be compared on the same objects, latency and bandwidth without touching a real bucket.
+ * every strategy gets warmup rounds and measured rounds; each measured round reports objects/s,
+ * MB/s downloaded and uploaded, p50 / p99 latency per object (first GET to end of PUT, seen by the server)
+ * and the peak heap, the sum of the peaks of the heap pools since the round started.
+ * the stage metrics of the measured rounds of every strategy are printed at the end.
+ * <p>
+ * mvn -Pjmh test-compile exec:exec@batch -Dbatch.objects=500 -Dbatch.latencyMillis=30 -Dbatch.strategies=forkJoin,staged
+ *
+ * @author Atom
+ */
+@Slf4j
+public class BatchBenchmark {
+
+    private static final String SOURCE_BUCKET = "benchmark-source";
+    private static final String DEST_BUCKET = "benchmark-dest";
+    private static final float SCALE = 0.5f;
+    private static final double MB = 1024 * 1024;
+    private static final int LIST_PARALLELISM = 16;
+
+    /**
+     * the strategies of App, with the buckets and the local directory passed in.
+     */
+    enum Strategy {
+        localFile {
+            @Override
+            void run(String sourceBucket, String destBucket, Path workDir) throws IOException {
+                for (String keyName : AwsS3Util.listAllObjectKeys(sourceBucket)) {
+                    File destImageFile = workDir.resolve(keyName).toFile();
+                    FileUtil.createParentDir(destImageFile);
+                    try (InputStream objectInputStream = AwsS3Util.getObjectInputStream(sourceBucket, keyName)) {
+                        ImageScaleUtil.scaleAndSaveLocal(objectInputStream, destImageFile, keyName, SCALE);
+                    }
+                    AwsS3Util.putLocalObject(destBucket, keyName, destImageFile.getAbsolutePath());
+                    Files.deleteIfExists(destImageFile.toPath());
+                }
+            }
+        },
+        streamDirect {
+            @Override
+            void run(String sourceBucket, String destBucket, Path workDir) throws IOException {
+                for (String keyName : AwsS3Util.listAllObjectKeys(sourceBucket)) {
+                    try (InputStream objectInputStream = AwsS3Util.getObjectInputStream(sourceBucket, keyName)) {
+                        ExposedByteArrayOutputStream scaledImage = ImageScaleUtil.scaleToBuffer(objectInputStream, keyName, SCALE);
+                        AwsS3Util.putObjectFromBuffer(destBucket, keyName, scaledImage);
+                    }
+                }
+            }
+        },
+        forkJoin {
+            @Override
+            void run(String sourceBucket, String destBucket, Path workDir) throws IOException {
+                // a new manifest every round, otherwise the second round would skip every object
+                Path manifestFile = Files.createTempFile(workDir, "manifest", ".tsv");
+                ForkJoinPool pool = new ForkJoinPool(64);
+                try (CheckpointManifest manifest = CheckpointManifest.open(manifestFile);
+                     Stream<S3Object> listed = AwsS3Util.streamAllObjectsSharded(sourceBucket, LIST_PARALLELISM)) {
+                    List<S3Object> objects = manifest.filterPending(listed).collect(Collectors.toList());
+                    pool.invoke(new ScaleImageAction(sourceBucket, destBucket, objects, manifest));
+                } finally {
+                    pool.shutdown();
+                    Files.deleteIfExists(manifestFile);
+                }
+            }
+        },
+        async {
+            @Override
+            void run(String sourceBucket, String destBucket, Path workDir) {
+                new AsyncScaleImagePipeline(sourceBucket, destBucket, SCALE, 64).run(AwsS3Util.listAllObjectKeys(sourceBucket));
+            }
+        },
+        staged {
+            @Override
+            void run(String sourceBucket, String destBucket, Path workDir) throws IOException {
+                try (Stream<S3Object> listed = AwsS3Util.streamAllObjectsSharded(sourceBucket, LIST_PARALLELISM)) {
+                    new StagedScaleImagePipeline(sourceBucket, destBucket, SCALE).run(listed.map(S3Object::key).iterator());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted", e);
+                }
+            }
+        };
+
+        abstract void run(String sourceBucket, String destBucket, Path workDir) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int objectCount = Integer.getInteger("batch.objects", 200);
+        int[] size = ImageFixtures.parseSize(System.getProperty("batch.size", "1920x1080"));
+        String format = System.getProperty("batch.format", "jpg");
+        long latencyMillis = Long.getLong("batch.latencyMillis", 20);
+        long bandwidthMBps = Long.getLong("batch.bandwidthMBps", 0);
+        int warmupRounds = Integer.getInteger("batch.warmup", 1);
+        int rounds = Integer.getInteger("batch.rounds", 3);
+        List<Strategy> strategies = strategies(System.getProperty("batch.strategies", ""));
+
+        Path root = Files.createTempDirectory("batch-benchmark");
+        try (LocalS3Server server = new LocalS3Server(root.resolve("s3"), latencyMillis, TimeUnit.MILLISECONDS, bandwidthMBps * 1024 * 1024)) {
+            AwsS3Util.useEndpoint(server.endpoint(), "benchmark", "benchmark");
+            seed(server, objectCount, size, format);
+            Path workDir = Files.createDirectories(root.resolve("work"));
+            System.out.printf("%d objects of %dx%d %s, latency %d ms, bandwidth %s per direction%n", objectCount, size[0], size[1],
+                    format, latencyMillis, bandwidthMBps > 0 ? bandwidthMBps + " MB/s" : "unlimited");
+            System.out.printf("%-13s %5s %7s %9s %9s %9s %9s %9s %9s %10s%n",
+                    "strategy", "round", "objects", "seconds", "objects/s", "MB/s in", "MB/s out", "p50 ms", "p99 ms", "peak heap");
+            List<String> stageSummaries = new ArrayList<>();
+            for (Strategy strategy : strategies) {
+                SimpleMeterRegistry registry = null;
+                for (int round = 1 - warmupRounds; round <= rounds; round++) {
+                    if (round == 1) {
+                        // stage metrics of the measured rounds only
+                        registry = new SimpleMeterRegistry();
+                        Metrics.addRegistry(registry);
+                    }
+                    Result result = runRound(server, strategy, workDir);
+                    if (round > 0) {
+                        result.print(strategy, round);
+                    }
+                }
+                if (registry != null) {
+                    stageSummaries.add(strategy + "\n" + ScaleMetrics.summary());
+                    Metrics.removeRegistry(registry);
+                }
+            }
+            stageSummaries.forEach(summary -> System.out.printf("%n%s%n", summary));
+        } finally {
+            try (Stream<Path> walk = Files.walk(root)) {
+                walk.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private static List<Strategy> strategies(String names) {
+        if (names.isEmpty()) {
+            return Arrays.asList(Strategy.values());
+        }
+        return Arrays.stream(names.split(",")).map(String::trim).map(Strategy::valueOf).collect(Collectors.toList());
+    }
+
+    /**
+     * distinct images under a few prefixes, so listing and key handling see something like a real bucket.
+     */
+    private static void seed(LocalS3Server server, int objectCount, int[] size, String format) throws IOException {
+        for (int i = 0; i < objectCount; i++) {
+            byte[] body = ImageFixtures.encode(ImageFixtures.photo(size[0], size[1], i), format);
+            server.putObject(SOURCE_BUCKET, String.format("dir-%d/image-%05d.%s", i % 8, i, format), body);
+        }
+    }
+
+    private static Result runRound(LocalS3Server server, Strategy strategy, Path workDir) throws IOException {
+        server.clearBucket(DEST_BUCKET);
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP)
+                .collect(Collectors.toList());
+        heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+        long servedBefore = server.bytesServed();
+        long receivedBefore = server.bytesReceived();
+        long start = System.nanoTime();
+        strategy.run(SOURCE_BUCKET, DEST_BUCKET, workDir);
+        long elapsedNanos = System.nanoTime() - start;
+
+        Result result = new Result();
+        result.seconds = elapsedNanos / 1e9;
+        result.bytesIn = server.bytesServed() - servedBefore;
+        result.bytesOut = server.bytesReceived() - receivedBefore;
+        result.peakHeap = heapPools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+        result.latenciesNanos = server.objects(SOURCE_BUCKET).keySet().stream()
+                .map(key -> server.objectLatencyNanos(SOURCE_BUCKET, DEST_BUCKET, key))
+                .filter(OptionalLong::isPresent)
+                .mapToLong(OptionalLong::getAsLong)
+                .sorted()
+                .toArray();
+        int missing = server.objects(SOURCE_BUCKET).size() - server.objects(DEST_BUCKET).size();
+        if (missing > 0) {
+            log.warn("{}: {} objects were not written", strategy, missing);
+        }
+        return result;
+    }
+
+    private static final class Result {
+        double seconds;
+        long bytesIn;
+        long bytesOut;
+        long peakHeap;
+        /**
+         * of the objects written, ascending.
+         */
+        long[] latenciesNanos;
+
+        void print(Strategy strategy, int round) {
+            System.out.printf("%-13s %5d %7d %9.2f %9.1f %9.1f %9.1f %9.1f %9.1f %7.0f MB%n",
+                    strategy, round, latenciesNanos.length, seconds, latenciesNanos.length / seconds,
+                    bytesIn / MB / seconds, bytesOut / MB / seconds, percentileMillis(0.50), percentileMillis(0.99), peakHeap / MB);
+        }
+
+        /**
+         * nearest rank.
+         */
+        double percentileMillis(double percentile) {
+            if (latenciesNanos.length == 0) {
+                return Double.NaN;
+            }
+            int rank = (int) Math.ceil(percentile * latenciesNanos.length);
+            return latenciesNanos[Math.max(0, rank - 1)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.atom.cropimage.benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * run the benchmarks twice, for throughput in ops/s and for the average time in ns/op,
+ * both with the gc profiler so allocation rate and bytes per op are reported too.
+ * <p>
+ * mvn -Pjmh test-compile exec:exec -Djmh.include=ScaleBenchmark
+ *
+ * @author Atom
+ */
+public class BenchmarkMain {
+
+    /**
+     * @param args an optional regular expression selecting the benchmarks, all of them by default
+     */
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : "com.atom.cropimage.benchmark.*";
+        new Runner(options(include, Mode.Throughput, TimeUnit.SECONDS)).run();
+        new Runner(options(include, Mode.AverageTime, TimeUnit.NANOSECONDS)).run();
+    }
+
+    private static Options options(String include, Mode mode, TimeUnit timeUnit) {
+        return new OptionsBuilder()
+                .include(include)
+                .mode(mode)
+                .timeUnit(timeUnit)
+                .addProfiler(GCProfiler.class)
+                .build();
+    }
+}
@@ -0,0 +1,80 @@
+package com.atom.cropimage.benchmark;
+
+import com.atom.cropimage.utils.ImageScaleUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * the file based crop path: cutImage end to end, and its read and write halves on their own.
+ *
+ * @author Atom
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FileImageBenchmark {
+
+    private static final int CROP_SIZE = 512;
+
+    @Param({"640x480", "1920x1080", "4000x3000"})
+    private String size;
+
+    @Param({"jpg", "png", "gif"})
+    private String format;
+
+    private Path directory;
+    private File sourceFile;
+    private File destFile;
+    private BufferedImage[] frames;
+    private int cropX;
+    private int cropY;
+    private int cropWidth;
+    private int cropHeight;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int[] dimensions = ImageFixtures.parseSize(size);
+        directory = Files.createTempDirectory("image-benchmark");
+        sourceFile = directory.resolve("source." + format).toFile();
+        destFile = directory.resolve("dest." + format).toFile();
+        Files.write(sourceFile.toPath(), ImageFixtures.encode(ImageFixtures.photo(dimensions[0], dimensions[1], 42), format));
+        frames = ImageScaleUtil.readerImage(sourceFile);
+        // a centred crop, the whole image when it is smaller than the crop
+        cropWidth = Math.min(CROP_SIZE, dimensions[0]);
+        cropHeight = Math.min(CROP_SIZE, dimensions[1]);
+        cropX = (dimensions[0] - cropWidth) / 2;
+        cropY = (dimensions[1] - cropHeight) / 2;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> walk = Files.walk(directory)) {
+            walk.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public void cutImage() throws Exception {
+        ImageScaleUtil.cutImage(sourceFile, destFile, cropX, cropY, cropWidth, cropHeight);
+    }
+
+    @Benchmark
+    public BufferedImage[] readerImage() throws IOException {
+        return ImageScaleUtil.readerImage(sourceFile);
+    }
+
+    @Benchmark
+    public void writerImage() throws Exception {
+        ImageScaleUtil.writerImage(frames, format, destFile);
+    }
+}
@@ -0,0 +1,73 @@
+package com.atom.cropimage.benchmark;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * synthetic images generated locally, so runs do not depend on S3 or on files of a given machine.
+ *
+ * @author Atom
+ */
+final class ImageFixtures {
+
+    private ImageFixtures() {
+    }
+
+    /**
+     * smooth gradients with shapes and a little noise, close enough to a photo for the encoders.
+     * the same size and seed always give the same image.
+     */
+    static BufferedImage photo(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        graphics.setPaint(new GradientPaint(0, 0, new Color(random.nextInt()), width, height, new Color(random.nextInt())));
+        graphics.fillRect(0, 0, width, height);
+        int shapes = Math.max(20, width * height / 20000);
+        for (int i = 0; i < shapes; i++) {
+            graphics.setColor(new Color(random.nextInt(), true));
+            int size = 8 + random.nextInt(Math.max(9, Math.min(width, height) / 4));
+            graphics.fillOval(random.nextInt(width), random.nextInt(height), size, size);
+        }
+        graphics.dispose();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(9) - 4;
+                int r = clamp(((row[x] >> 16) & 0xff) + noise);
+                int g = clamp(((row[x] >> 8) & 0xff) + noise);
+                int b = clamp((row[x] & 0xff) + noise);
+                row[x] = r << 16 | g << 8 | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    static byte[] encode(BufferedImage image, String formatName) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, formatName, bos)) {
+            throw new IOException("no image writer for format " + formatName);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * @param size WIDTHxHEIGHT
+     * @return {width, height}
+     */
+    static int[] parseSize(String size) {
+        String[] parts = size.split("x");
+        return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
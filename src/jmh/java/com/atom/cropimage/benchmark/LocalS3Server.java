@@ -0,0 +1,451 @@
+package com.atom.cropimage.benchmark;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * an in-process stand-in for S3, just enough of the REST api for the batch strategies:
+ * create bucket, ListObjectsV2, GetObject, HeadObject and PutObject, path style only, requests are not authenticated.
+ * object bodies live in a directory on disk so they do not count towards the heap of the process under test.
+ * <p>
+ * every request waits {@code latency} before its response, bodies in both directions go through
+ * a shared link of {@code bytesPerSecond}, like all clients of one host sharing its network.
+ * the first GET of a key and the last PUT of a key are timestamped, so the latency of an object
+ * through any pipeline can be measured from the outside.
+ *
+ * @author Atom
+ */
+@Slf4j
+final class LocalS3Server implements Closeable {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_KEYS = 1000;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Path root;
+    private final long latencyNanos;
+    private final Link download;
+    private final Link upload;
+    private final Map<String, ConcurrentSkipListMap<String, Entry>> buckets = new ConcurrentHashMap<>();
+    private final Map<String, Long> firstGetNanos = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastPutNanos = new ConcurrentHashMap<>();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * @param latency        added before every response, 0 for none
+     * @param bytesPerSecond of each direction of the link, 0 for unlimited
+     */
+    LocalS3Server(Path root, long latency, TimeUnit unit, long bytesPerSecond) throws IOException {
+        this.root = root;
+        this.latencyNanos = unit.toNanos(latency);
+        this.download = new Link(bytesPerSecond);
+        this.upload = new Link(bytesPerSecond);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        // one thread per connection, a sleeping request must not hold back the others
+        this.executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("local-s3-%d").setDaemon(true).build());
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    URI endpoint() {
+        return URI.create("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort());
+    }
+
+    /**
+     * add an object without going through http, for the fixtures.
+     */
+    void putObject(String bucket, String key, byte[] body) throws IOException {
+        Path file = objectFile(bucket, key);
+        Files.createDirectories(file.getParent());
+        Files.write(file, body);
+        bucket(bucket).put(key, new Entry(body.length, md5Hex(body), Instant.now()));
+    }
+
+    /**
+     * drop all objects of the bucket and the timestamps, before the next run.
+     */
+    void clearBucket(String bucket) throws IOException {
+        ConcurrentSkipListMap<String, Entry> objects = bucket(bucket);
+        for (String key : objects.keySet()) {
+            Files.deleteIfExists(objectFile(bucket, key));
+        }
+        objects.clear();
+        firstGetNanos.clear();
+        lastPutNanos.clear();
+    }
+
+    Map<String, Entry> objects(String bucket) {
+        return Collections.unmodifiableMap(bucket(bucket));
+    }
+
+    /**
+     * nanos from the first GET of the key in the source bucket to the end of its last PUT in the destination bucket.
+     *
+     * @return empty when the object was not read or not written
+     */
+    OptionalLong objectLatencyNanos(String sourceBucket, String destBucket, String key) {
+        Long get = firstGetNanos.get(sourceBucket + "/" + key);
+        Long put = lastPutNanos.get(destBucket + "/" + key);
+        return get == null || put == null ? OptionalLong.empty() : OptionalLong.of(put - get);
+    }
+
+    long bytesServed() {
+        return bytesServed.get();
+    }
+
+    long bytesReceived() {
+        return bytesReceived.get();
+    }
+
+    long requests() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            String path = URLDecoder.decode(exchange.getRequestURI().getRawPath(), "UTF-8").substring(1);
+            int slash = path.indexOf('/');
+            String bucket = slash < 0 ? path : path.substring(0, slash);
+            String key = slash < 0 || slash == path.length() - 1 ? null : path.substring(slash + 1);
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            String method = exchange.getRequestMethod();
+            pause(latencyNanos);
+            if (key == null && "PUT".equals(method)) {
+                bucket(bucket);
+                sendEmpty(exchange, 200);
+            } else if (key == null && "GET".equals(method) && "2".equals(query.get("list-type"))) {
+                listObjectsV2(exchange, bucket, query);
+            } else if (key != null && "GET".equals(method)) {
+                getObject(exchange, bucket, key);
+            } else if (key != null && "HEAD".equals(method)) {
+                headObject(exchange, bucket, key);
+            } else if (key != null && "PUT".equals(method) && !query.containsKey("uploadId")) {
+                putObject(exchange, bucket, key);
+            } else {
+                sendError(exchange, 501, "NotImplemented", method + " " + exchange.getRequestURI() + " is not supported by the stand-in");
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("local s3 request {} {} fail", exchange.getRequestMethod(), exchange.getRequestURI(), e);
+            throw e;
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void listObjectsV2(HttpExchange exchange, String bucket, Map<String, String> query) throws IOException {
+        int maxKeys = Math.min(MAX_KEYS, Integer.parseInt(query.getOrDefault("max-keys", String.valueOf(MAX_KEYS))));
+        String prefix = query.getOrDefault("prefix", "");
+        String after = query.getOrDefault("continuation-token", query.get("start-after"));
+        NavigableMap<String, Entry> objects = after == null ? bucket(bucket) : bucket(bucket).tailMap(after, false);
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">")
+                .append("<Name>").append(escape(bucket)).append("</Name>")
+                .append("<Prefix>").append(escape(prefix)).append("</Prefix>")
+                .append("<MaxKeys>").append(maxKeys).append("</MaxKeys>");
+        int count = 0;
+        String last = null;
+        boolean truncated = false;
+        for (Map.Entry<String, Entry> object : objects.entrySet()) {
+            if (!object.getKey().startsWith(prefix)) {
+                continue;
+            }
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            Entry entry = object.getValue();
+            xml.append("<Contents>")
+                    .append("<Key>").append(escape(object.getKey())).append("</Key>")
+                    .append("<LastModified>").append(entry.lastModified).append("</LastModified>")
+                    .append("<ETag>&quot;").append(entry.eTag).append("&quot;</ETag>")
+                    .append("<Size>").append(entry.size).append("</Size>")
+                    .append("<StorageClass>STANDARD</StorageClass>")
+                    .append("</Contents>");
+            last = object.getKey();
+            count++;
+        }
+        xml.append("<KeyCount>").append(count).append("</KeyCount>")
+                .append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        if (truncated) {
+            xml.append("<NextContinuationToken>").append(escape(last)).append("</NextContinuationToken>");
+        }
+        xml.append("</ListBucketResult>");
+        byte[] body = xml.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private void getObject(HttpExchange exchange, String bucket, String key) throws IOException {
+        firstGetNanos.putIfAbsent(bucket + "/" + key, System.nanoTime());
+        Entry entry = bucket(bucket).get(key);
+        if (entry == null) {
+            sendError(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.getResponseHeaders().set("ETag", "\"" + entry.eTag + "\"");
+        exchange.sendResponseHeaders(200, entry.size);
+        try (InputStream in = Files.newInputStream(objectFile(bucket, key));
+             OutputStream out = exchange.getResponseBody()) {
+            bytesServed.addAndGet(transfer(in, out, download));
+        }
+    }
+
+    private void headObject(HttpExchange exchange, String bucket, String key) throws IOException {
+        Entry entry = bucket(bucket).get(key);
+        if (entry == null) {
+            // a HEAD response has no body to carry the error
+            sendEmpty(exchange, 404);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.getResponseHeaders().set("Content-Length", String.valueOf(entry.size));
+        exchange.getResponseHeaders().set("ETag", "\"" + entry.eTag + "\"");
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void putObject(HttpExchange exchange, String bucket, String key) throws IOException {
+        Path file = objectFile(bucket, key);
+        Files.createDirectories(file.getParent());
+        Path temp = Files.createTempFile(file.getParent(), ".upload", null);
+        MessageDigest md5 = md5();
+        long size;
+        try (InputStream in = requestBody(exchange);
+             OutputStream out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), CHUNK_SIZE), md5)) {
+            size = transfer(in, out, upload);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        bytesReceived.addAndGet(size);
+        String eTag = hex(md5.digest());
+        bucket(bucket).put(key, new Entry(size, eTag, Instant.now()));
+        lastPutNanos.put(bucket + "/" + key, System.nanoTime());
+        exchange.getResponseHeaders().set("ETag", "\"" + eTag + "\"");
+        sendEmpty(exchange, 200);
+    }
+
+    /**
+     * the sync client signs the payload of plain http requests chunk by chunk (aws-chunked), strip the framing.
+     */
+    private static InputStream requestBody(HttpExchange exchange) {
+        String contentSha256 = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+        InputStream body = exchange.getRequestBody();
+        return contentSha256 != null && contentSha256.startsWith("STREAMING-") ? new AwsChunkedInputStream(new BufferedInputStream(body, CHUNK_SIZE)) : body;
+    }
+
+    private static long transfer(InputStream in, OutputStream out, Link link) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        long total = 0;
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            link.transfer(n);
+            out.write(chunk, 0, n);
+            total += n;
+        }
+        return total;
+    }
+
+    private static void sendEmpty(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String code, String message) throws IOException {
+        byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>" + code + "</Code><Message>"
+                + escape(message) + "</Message></Error>").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private ConcurrentSkipListMap<String, Entry> bucket(String bucket) {
+        return buckets.computeIfAbsent(bucket, name -> new ConcurrentSkipListMap<>());
+    }
+
+    private Path objectFile(String bucket, String key) {
+        return root.resolve(bucket).resolve(key);
+    }
+
+    private static Map<String, String> query(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int index = parameter.indexOf('=');
+            String name = URLDecoder.decode(index < 0 ? parameter : parameter.substring(0, index), "UTF-8");
+            query.put(name, index < 0 ? "" : URLDecoder.decode(parameter.substring(index + 1), "UTF-8"));
+        }
+        return query;
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String md5Hex(byte[] body) {
+        return hex(md5().digest(body));
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void pause(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long remaining = nanos;
+        while (remaining > 0) {
+            LockSupport.parkNanos(remaining);
+            remaining = deadline - System.nanoTime();
+        }
+    }
+
+    static final class Entry {
+        final long size;
+        final String eTag;
+        final Instant lastModified;
+
+        Entry(long size, String eTag, Instant lastModified) {
+            this.size = size;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * one direction of the network, bytes are let through in arrival order at a fixed rate.
+     */
+    private static final class Link {
+        private final double nanosPerByte;
+        private long nextFreeNanos;
+
+        Link(long bytesPerSecond) {
+            this.nanosPerByte = bytesPerSecond > 0 ? 1e9 / bytesPerSecond : 0;
+        }
+
+        void transfer(int bytes) {
+            if (nanosPerByte == 0) {
+                return;
+            }
+            long done;
+            synchronized (this) {
+                done = Math.max(nextFreeNanos, System.nanoTime()) + (long) (bytes * nanosPerByte);
+                nextFreeNanos = done;
+            }
+            pause(done - System.nanoTime());
+        }
+    }
+
+    /**
+     * the body of a STREAMING-AWS4-HMAC-SHA256-PAYLOAD request:
+     * {@code hex-size;chunk-signature=...\r\n<data>\r\n} repeated, ended by a chunk of size 0.
+     */
+    private static final class AwsChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+        private boolean finished;
+
+        AwsChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (finished) {
+                return -1;
+            }
+            if (remaining == 0) {
+                String header = readLine();
+                int semicolon = header.indexOf(';');
+                remaining = Long.parseLong(semicolon < 0 ? header : header.substring(0, semicolon), 16);
+                if (remaining == 0) {
+                    // skip the trailer too: the server closes any connection whose request body is not read to the end
+                    while (in.read() != -1) {
+                    }
+                    finished = true;
+                    return -1;
+                }
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) {
+                throw new EOFException("aws-chunked body ends inside a chunk");
+            }
+            remaining -= n;
+            if (remaining == 0) {
+                readLine();
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c == -1) {
+                    throw new EOFException("aws-chunked body ends inside a chunk header");
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+    }
+}
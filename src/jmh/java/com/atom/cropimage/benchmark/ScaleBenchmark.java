@@ -0,0 +1,46 @@
+package com.atom.cropimage.benchmark;
+
+import com.atom.cropimage.utils.ImageScaleUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * decode, scale and encode of an in-memory object, the cpu part of a batch without the S3 transfers.
+ *
+ * @author Atom
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ScaleBenchmark {
+
+    @Param({"640x480", "1920x1080", "4000x3000"})
+    private String size;
+
+    @Param({"jpg", "png"})
+    private String format;
+
+    @Param({"0.5", "0.25", "0.1"})
+    private float scale;
+
+    private byte[] source;
+    private String keyName;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int[] dimensions = ImageFixtures.parseSize(size);
+        source = ImageFixtures.encode(ImageFixtures.photo(dimensions[0], dimensions[1], 42), format);
+        keyName = "fixture." + format;
+    }
+
+    @Benchmark
+    public InputStream scaleToInputStream() {
+        return ImageScaleUtil.scaleToInputStream(new ByteArrayInputStream(source), keyName, scale);
+    }
+}
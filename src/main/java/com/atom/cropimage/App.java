@@ -1,12 +1,20 @@
 package com.atom.cropimage;
 
+import com.atom.cropimage.action.AsyncScaleImagePipeline;
 import com.atom.cropimage.action.ScaleImageAction;
+import com.atom.cropimage.action.StagedScaleImagePipeline;
 import com.atom.cropimage.utils.AwsS3Util;
+import com.atom.cropimage.utils.CheckpointManifest;
+import com.atom.cropimage.utils.ExposedByteArrayOutputStream;
 import com.atom.cropimage.utils.FileUtil;
 import com.atom.cropimage.utils.ImageScaleUtil;
+import com.atom.cropimage.utils.ScaleMetrics;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.FileUtils;
 import org.springframework.util.StopWatch;
+import software.amazon.awssdk.services.s3.model.S3Object;
 
 import java.io.File;
 import java.io.IOException;
@@ -15,6 +23,8 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author Atom
@@ -25,12 +35,24 @@ public class App {
     private static final String sourceBucket = "bucket-liuyaming-001";
     private static final String destBucket = "bucket-liuyaming-002";
     private static final String localFilePath = "/Users/atom/test/";
+    /**
+     * kept outside localFilePath, that directory is cleaned after each local file run.
+     */
+    private static final String manifestPath = "/Users/atom/" + destBucket + "-manifest.tsv";
+    /**
+     * top level prefixes of the source bucket listed at the same time.
+     */
+    private static final int listParallelism = 16;
 
 
     public static void main(String[] args) {
+        // outside spring there is no actuator registry, keep the stage metrics for the summary
+        Metrics.addRegistry(new SimpleMeterRegistry());
 //        testSaveToLocalThenUploadS3();
 //        testTransferInputStreamThenUploadS3Direct();
         testForkJoinTask();
+//        testAsyncPipeline();
+//        testStagedPipeline();
 
 
     }
@@ -45,12 +67,15 @@ public class App {
     private static void testSaveToLocalThenUploadS3() {
         StopWatch sw = new StopWatch();
         sw.start("scale image use temp local file task");
-        List<String> objectKeyList = AwsS3Util.listAllObjects(sourceBucket);
+        List<String> objectKeyList = AwsS3Util.listAllObjectKeys(sourceBucket);
         objectKeyList.forEach(keyName -> {
-            InputStream objectInputStream = AwsS3Util.getObjectInputStream(sourceBucket, keyName);
             File destImageFile = new File(localFilePath + keyName);
             FileUtil.createParentDir(destImageFile);
-            ImageScaleUtil.scaleAndSaveLocal(objectInputStream, destImageFile, keyName, 0.5f);
+            try (InputStream objectInputStream = AwsS3Util.getObjectInputStream(sourceBucket, keyName)) {
+                ImageScaleUtil.scaleAndSaveLocal(objectInputStream, destImageFile, keyName, 0.5f);
+            } catch (IOException e) {
+                log.error("close the object stream fail ", e);
+            }
             AwsS3Util.putLocalObject(destBucket, keyName, localFilePath + keyName);
             try {
                 Files.deleteIfExists(Paths.get(localFilePath + keyName));
@@ -77,6 +102,7 @@ public class App {
 
         sw.stop();
         log.debug(sw.prettyPrint());
+        log.debug("stage metrics:\n{}", ScaleMetrics.summary());
     }
 
 
@@ -89,14 +115,18 @@ public class App {
     private static void testTransferInputStreamThenUploadS3Direct() {
         StopWatch sw = new StopWatch();
         sw.start("scale image use stream direct task");
-        List<String> objectKeyList = AwsS3Util.listAllObjects(sourceBucket);
+        List<String> objectKeyList = AwsS3Util.listAllObjectKeys(sourceBucket);
         objectKeyList.forEach(keyName -> {
-            InputStream objectInputStream = AwsS3Util.getObjectInputStream(sourceBucket, keyName);
-            InputStream inputStream = ImageScaleUtil.scaleToInputStream(objectInputStream, keyName, 0.5f);
-            AwsS3Util.putLocalObjectFromInputStream(destBucket, keyName, inputStream);
+            try (InputStream objectInputStream = AwsS3Util.getObjectInputStream(sourceBucket, keyName)) {
+                ExposedByteArrayOutputStream scaledImage = ImageScaleUtil.scaleToBuffer(objectInputStream, keyName, 0.5f);
+                AwsS3Util.putObjectFromBuffer(destBucket, keyName, scaledImage);
+            } catch (IOException e) {
+                log.error("close the object stream fail ", e);
+            }
         });
         sw.stop();
         log.debug(sw.prettyPrint());
+        log.debug("stage metrics:\n{}", ScaleMetrics.summary());
     }
 
 
@@ -109,9 +139,49 @@ public class App {
     private static void testForkJoinTask() {
         StopWatch sw = new StopWatch();
         sw.start("scale image use stream direct task");
-        List<String> objectKeyList = AwsS3Util.listAllObjects(sourceBucket);
-        new ForkJoinPool(64).invoke(new ScaleImageAction(sourceBucket, destBucket, objectKeyList));
+        try (CheckpointManifest manifest = CheckpointManifest.open(Paths.get(manifestPath));
+             Stream<S3Object> listed = AwsS3Util.streamAllObjectsSharded(sourceBucket, listParallelism)) {
+            List<S3Object> objects = manifest.filterPending(listed).collect(Collectors.toList());
+            log.info("{} objects to scale, the others are unchanged since the last run", objects.size());
+            new ForkJoinPool(64).invoke(new ScaleImageAction(sourceBucket, destBucket, objects, manifest));
+        } catch (IOException e) {
+            log.error("open the checkpoint manifest fail ", e);
+        }
+        sw.stop();
+        log.debug(sw.prettyPrint());
+        log.debug("stage metrics:\n{}", ScaleMetrics.summary());
+    }
+
+
+    /**
+     * non-blocking S3 transfers, decode / scale / encode on a pool of cpu size.
+     */
+    private static void testAsyncPipeline() {
+        StopWatch sw = new StopWatch();
+        sw.start("scale image use async pipeline task");
+        List<String> objectKeyList = AwsS3Util.listAllObjectKeys(sourceBucket);
+        int failures = new AsyncScaleImagePipeline(sourceBucket, destBucket, 0.5f, 64).run(objectKeyList);
+        sw.stop();
+        log.debug("{} objects failed", failures);
+        log.debug(sw.prettyPrint());
+        log.debug("stage metrics:\n{}", ScaleMetrics.summary());
+    }
+
+
+    /**
+     * list -> fetch -> decode -> scale -> encode -> upload, each stage with its own threads and bounded queue.
+     */
+    private static void testStagedPipeline() {
+        StopWatch sw = new StopWatch();
+        sw.start("scale image use staged pipeline task");
+        try (Stream<S3Object> listed = AwsS3Util.streamAllObjectsSharded(sourceBucket, listParallelism)) {
+            int failures = new StagedScaleImagePipeline(sourceBucket, destBucket, 0.5f).run(listed.iterator());
+            log.debug("{} objects failed", failures);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         sw.stop();
         log.debug(sw.prettyPrint());
+        log.debug("stage metrics:\n{}", ScaleMetrics.summary());
     }
 }
@@ -0,0 +1,97 @@
+package com.atom.cropimage.action;
+
+import com.atom.cropimage.utils.AwsS3Util;
+import com.atom.cropimage.utils.EncodeBufferPool;
+import com.atom.cropimage.utils.ImageScaleUtil;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * scale images with non-blocking S3 transfers, the alternative to {@link ScaleImageAction}.
+ * downloads and uploads run on the S3AsyncClient event loop, only decode / resample / encode
+ * occupies a pool sized to the cpu cores, so no thread is parked on network I/O.
+ *
+ * @author Atom
+ */
+@Slf4j
+public class AsyncScaleImagePipeline {
+
+    private final String sourceBucket;
+    private final String destBucket;
+    private final float scale;
+    private final ExecutorService cpuExecutor;
+    /**
+     * objects between the start of their download and the end of their upload.
+     */
+    private final Semaphore inFlight;
+
+    public AsyncScaleImagePipeline(String sourceBucket, String destBucket, float scale, int maxInFlight) {
+        this(sourceBucket, destBucket, scale, maxInFlight, Runtime.getRuntime().availableProcessors());
+    }
+
+    public AsyncScaleImagePipeline(String sourceBucket, String destBucket, float scale, int maxInFlight, int cpuThreads) {
+        this.sourceBucket = sourceBucket;
+        this.destBucket = destBucket;
+        this.scale = scale;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.cpuExecutor = Executors.newFixedThreadPool(cpuThreads,
+                new ThreadFactoryBuilder().setNameFormat("scale-cpu-%d").setDaemon(true).build());
+    }
+
+    /**
+     * scale all the keys and wait until every upload has finished, the pipeline can only be run once.
+     *
+     * @param objectKeyList
+     * @return the number of objects that failed
+     */
+    public int run(List<String> objectKeyList) {
+        AtomicInteger failures = new AtomicInteger();
+        List<CompletableFuture<Void>> tasks = new ArrayList<>(objectKeyList.size());
+        try {
+            for (String keyName : objectKeyList) {
+                inFlight.acquire();
+                tasks.add(startScaleImage(keyName).whenComplete((r, e) -> {
+                    inFlight.release();
+                    if (e != null) {
+                        failures.incrementAndGet();
+                        log.error("scale image [{}] fail ", keyName, e);
+                    }
+                }));
+            }
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            tasks.forEach(task -> task.cancel(true));
+        } finally {
+            cpuExecutor.shutdown();
+        }
+        return failures.get();
+    }
+
+    /**
+     * a synchronous throw while starting the transfer fails the returned future like any later failure,
+     * so the permit of the key is released all the same.
+     */
+    private CompletableFuture<Void> startScaleImage(String keyName) {
+        try {
+            return scaleImage(keyName);
+        } catch (RuntimeException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private CompletableFuture<Void> scaleImage(String keyName) {
+        return AwsS3Util.getObjectBytesAsync(sourceBucket, keyName)
+                .thenApplyAsync(objectBytes -> ImageScaleUtil.scaleToBuffer(objectBytes.asInputStream(), keyName, scale), cpuExecutor)
+                .thenCompose(scaledImage -> AwsS3Util.putObjectFromBufferAsync(destBucket, keyName, scaledImage)
+                        .whenComplete((response, e) -> EncodeBufferPool.release(scaledImage)))
+                .thenApply(response -> null);
+    }
+}
@@ -1,30 +1,96 @@
 package com.atom.cropimage.action;
 
 import com.atom.cropimage.utils.AwsS3Util;
+import com.atom.cropimage.utils.CheckpointManifest;
+import com.atom.cropimage.utils.EncodeBufferPool;
 import com.atom.cropimage.utils.ImageScaleUtil;
-import com.google.common.collect.Lists;
+import com.atom.cropimage.utils.Rendition;
+import com.atom.cropimage.utils.RenditionSpec;
 import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.s3.model.S3Object;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveAction;
 
 /**
+ * scale the objects of a listing, splitting by their size: a task keeps halving its objects into two sets of about
+ * the same number of bytes until it holds one object or few enough bytes, then scales them largest first.
+ * big objects therefore start early and end up spread over the workers instead of forming the tail of the batch.
+ * objects of unknown size are weighed like small ones, a listing without sizes is split by object count.
+ *
  * @author Atom
  */
 @Slf4j
 public class ScaleImageAction extends RecursiveAction {
 
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * half size under the same key, what this action always produced.
+     */
+    private static final List<RenditionSpec> DEFAULT_RENDITIONS = Collections.singletonList(RenditionSpec.ofScale("half", 0.5f).keyTemplate("{key}"));
+
+    /**
+     * a task is split further while it holds more than this many bytes, unless the whole batch is small
+     * and a smaller share is needed to give every worker of the pool several tasks.
+     */
+    private static final long SPLIT_THRESHOLD_BYTES = 16L * 1024 * 1024;
+    private static final int TASKS_PER_WORKER = 4;
+    /**
+     * every object costs a GET and a PUT whatever its size, unknown and smaller sizes weigh this much.
+     */
+    private static final long MIN_OBJECT_BYTES = 64 * 1024;
+
     private String sourceBucket;
     private String destBucket;
-    private List<String> objectKeyList;
+    /**
+     * largest first.
+     */
+    private List<S3Object> objects;
+    /**
+     * the sum of the weights of the objects.
+     */
+    private long totalBytes;
+    /**
+     * decided by the root task from the batch size and the pool parallelism, 0 until then.
+     */
+    private long splitBytes;
+    /**
+     * records the outcome of every key when not null.
+     */
+    private CheckpointManifest manifest;
+    /**
+     * all produced from one fetch and one decode of each key.
+     */
+    private List<RenditionSpec> renditions;
 
 
-    public ScaleImageAction(String sourceBucket, String destBucket, List<String> objectKeyList) {
+    public ScaleImageAction(String sourceBucket, String destBucket, List<S3Object> objects) {
+        this(sourceBucket, destBucket, objects, null);
+    }
+
+    public ScaleImageAction(String sourceBucket, String destBucket, List<S3Object> objects, CheckpointManifest manifest) {
+        this(sourceBucket, destBucket, objects, manifest, DEFAULT_RENDITIONS);
+    }
+
+    public ScaleImageAction(String sourceBucket, String destBucket, List<S3Object> objects, CheckpointManifest manifest, List<RenditionSpec> renditions) {
+        this(sourceBucket, destBucket, largestFirst(objects), 0, manifest, renditions);
+        this.totalBytes = this.objects.stream().mapToLong(ScaleImageAction::weight).sum();
+    }
+
+    private ScaleImageAction(String sourceBucket, String destBucket, List<S3Object> objects, long splitBytes, CheckpointManifest manifest, List<RenditionSpec> renditions) {
         this.sourceBucket = sourceBucket;
         this.destBucket = destBucket;
-        this.objectKeyList = objectKeyList;
+        this.objects = objects;
+        this.splitBytes = splitBytes;
+        this.manifest = manifest;
+        this.renditions = renditions;
     }
 
     /**
@@ -32,28 +98,87 @@ public class ScaleImageAction extends RecursiveAction {
      */
     @Override
     protected void compute() {
-        int size = objectKeyList.size();
-        List<ScaleImageAction> subTasks = new LinkedList<>();
-        if (size <= 2) {
-            scaleImages(objectKeyList);
-        } else {
-            List<List<String>> objectListPartitions = Lists.partition(objectKeyList, 2);
-            objectListPartitions.forEach(part -> subTasks.add(new ScaleImageAction(sourceBucket, destBucket, part)));
-            invokeAll(subTasks);
+        if (splitBytes == 0) {
+            plan(getPool() != null ? getPool().getParallelism() : ForkJoinPool.getCommonPoolParallelism());
         }
+        if (isLeaf()) {
+            scaleImages(objects);
+            return;
+        }
+        ScaleImageAction[] halves = split();
+        invokeAll(halves[0], halves[1]);
+    }
+
+    /**
+     * decide how far the batch of a root task is split for the parallelism of its pool.
+     */
+    void plan(int parallelism) {
+        long share = totalBytes / ((long) parallelism * TASKS_PER_WORKER);
+        splitBytes = Math.max(1, Math.min(SPLIT_THRESHOLD_BYTES, share));
+    }
+
+    boolean isLeaf() {
+        return objects.size() <= 1 || totalBytes <= splitBytes;
+    }
+
+    /**
+     * objects come largest first, giving each one to the lighter half keeps both halves balanced and sorted.
+     */
+    ScaleImageAction[] split() {
+        ScaleImageAction left = new ScaleImageAction(sourceBucket, destBucket, new ArrayList<>(), splitBytes, manifest, renditions);
+        ScaleImageAction right = new ScaleImageAction(sourceBucket, destBucket, new ArrayList<>(), splitBytes, manifest, renditions);
+        for (S3Object object : objects) {
+            ScaleImageAction lighter = left.totalBytes <= right.totalBytes ? left : right;
+            lighter.objects.add(object);
+            lighter.totalBytes += weight(object);
+        }
+        return new ScaleImageAction[]{left, right};
+    }
+
+    List<S3Object> getObjects() {
+        return objects;
+    }
+
+    private static List<S3Object> largestFirst(List<S3Object> objects) {
+        List<S3Object> sorted = new ArrayList<>(objects);
+        sorted.sort(Comparator.comparingLong(ScaleImageAction::weight).reversed());
+        return sorted;
+    }
+
+    private static long weight(S3Object object) {
+        return object.size() == null ? MIN_OBJECT_BYTES : Math.max(MIN_OBJECT_BYTES, object.size());
     }
 
 
     /**
-     * business method
+     * business method, a failing object is recorded and logged, the rest of the leaf goes on.
      *
-     * @param objectKeyList
+     * @param objects
      */
-    private void scaleImages(List<String> objectKeyList) {
-        objectKeyList.forEach(keyName -> {
-            InputStream objectInputStream = AwsS3Util.getObjectInputStream(this.sourceBucket, keyName);
-            InputStream inputStream = ImageScaleUtil.scaleToInputStream(objectInputStream, keyName, 0.5f);
-            AwsS3Util.putLocalObjectFromInputStream(this.destBucket, keyName, inputStream);
+    private void scaleImages(List<S3Object> objects) {
+        objects.forEach(object -> {
+            String keyName = object.key();
+            boolean uploaded = false;
+            List<Rendition> scaledImages = Collections.emptyList();
+            try {
+                try (InputStream objectInputStream = AwsS3Util.getObjectInputStream(this.sourceBucket, keyName)) {
+                    scaledImages = ImageScaleUtil.renderAll(objectInputStream, keyName, renditions);
+                }
+                uploaded = true;
+                for (Rendition rendition : scaledImages) {
+                    uploaded &= AwsS3Util.putObjectFromBuffer(this.destBucket, rendition.getDestinationKey(), rendition.getEncoded());
+                }
+            } catch (IOException | RuntimeException e) {
+                uploaded = false;
+                log.error("scale image [{}] fail ", keyName, e);
+            } finally {
+                for (Rendition rendition : scaledImages) {
+                    EncodeBufferPool.release(rendition.getEncoded());
+                }
+                if (manifest != null) {
+                    manifest.record(keyName, uploaded ? CheckpointManifest.Status.COMPLETED : CheckpointManifest.Status.FAILED);
+                }
+            }
         });
     }
 }
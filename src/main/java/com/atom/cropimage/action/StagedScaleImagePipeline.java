@@ -0,0 +1,278 @@
+package com.atom.cropimage.action;
+
+import com.atom.cropimage.utils.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * scale images in a pipeline of stages: list -> fetch -> decode -> scale -> encode -> upload.
+ * every stage has its own threads and hands work to the next one through a bounded queue,
+ * so network and cpu stages overlap and a slow stage blocks the ones before it.
+ * fetched bytes that have not been uploaded yet are bounded by a {@link ByteBudget},
+ * decoded rasters by the decode budget of {@link ImageScaleUtil}.
+ * the list stage runs on the calling thread and feeds objects as soon as the iterator yields them.
+ *
+ * @author Atom
+ */
+@Slf4j
+public class StagedScaleImagePipeline {
+
+    public enum Stage {
+        FETCH, DECODE, SCALE, ENCODE, UPLOAD
+    }
+
+    private static final ScaleJob END = new ScaleJob(null, null);
+
+    private final String sourceBucket;
+    private final String destBucket;
+    private final float scale;
+    private final Map<Stage, Integer> threads = new EnumMap<>(Stage.class);
+    private int queueCapacity = 16;
+    private long byteBudget = 256L * 1024 * 1024;
+
+    public StagedScaleImagePipeline(String sourceBucket, String destBucket, float scale) {
+        this.sourceBucket = sourceBucket;
+        this.destBucket = destBucket;
+        this.scale = scale;
+        int cores = Runtime.getRuntime().availableProcessors();
+        threads.put(Stage.FETCH, 16);
+        threads.put(Stage.DECODE, cores);
+        threads.put(Stage.SCALE, Math.max(1, cores / 2));
+        threads.put(Stage.ENCODE, cores);
+        threads.put(Stage.UPLOAD, 16);
+    }
+
+    public StagedScaleImagePipeline threads(Stage stage, int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("thread count must be positive, got " + count);
+        }
+        threads.put(stage, count);
+        return this;
+    }
+
+    /**
+     * capacity of each queue between two stages.
+     */
+    public StagedScaleImagePipeline queueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * bytes fetched but not uploaded yet, across all stages.
+     */
+    public StagedScaleImagePipeline byteBudget(long byteBudget) {
+        this.byteBudget = byteBudget;
+        return this;
+    }
+
+    /**
+     * run the pipeline until the objects are exhausted and every object has left the upload stage.
+     * the listed size of an object is what the fetch stage reserves for it, objects without one cost a HEAD.
+     *
+     * @param objects
+     * @return the number of objects that failed
+     */
+    public int run(Iterator<S3Object> objects) throws InterruptedException {
+        ByteBudget budget = new ByteBudget(byteBudget);
+        AtomicInteger failures = new AtomicInteger();
+        int totalThreads = threads.values().stream().mapToInt(Integer::intValue).sum();
+        ExecutorService executor = Executors.newFixedThreadPool(totalThreads,
+                new ThreadFactoryBuilder().setNameFormat("scale-stage-%d").setDaemon(true).build());
+        BlockingQueue<ScaleJob> fetchQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<ScaleJob> decodeQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<ScaleJob> scaleQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<ScaleJob> encodeQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<ScaleJob> uploadQueue = new ArrayBlockingQueue<>(queueCapacity);
+        CountDownLatch finished = new CountDownLatch(threads.get(Stage.UPLOAD));
+        try {
+            startStage(executor, Stage.FETCH, fetchQueue, decodeQueue, Stage.DECODE, budget, failures, null, job -> {
+                // the size from the listing, a HEAD when it has none. the bytes are reserved before the GET is opened,
+                // so no connection is held open while waiting for the budget
+                long size = job.size != null ? job.size : AwsS3Util.headObject(sourceBucket, job.keyName).contentLength();
+                job.reserved = budget.acquire(size);
+                try (ResponseInputStream<GetObjectResponse> objectStream = AwsS3Util.getObjectResponseInputStream(sourceBucket, job.keyName)) {
+                    long contentLength = objectStream.response().contentLength();
+                    if (contentLength != size) {
+                        // overwritten since it was listed: give back what it no longer needs, take more only if it is free right now
+                        int needed = budget.getCapacity() < contentLength ? budget.getCapacity() : (int) contentLength;
+                        if (needed < job.reserved) {
+                            budget.release(job.reserved - needed);
+                            job.reserved = needed;
+                        } else {
+                            job.reserved += Math.max(0, budget.tryAcquire(needed - job.reserved));
+                        }
+                    }
+                    ExposedByteArrayOutputStream compressed = new ExposedByteArrayOutputStream((int) Math.min(contentLength, Integer.MAX_VALUE - 8));
+                    byte[] chunk = new byte[8192];
+                    int n;
+                    while ((n = objectStream.read(chunk)) != -1) {
+                        compressed.write(chunk, 0, n);
+                    }
+                    job.compressed = compressed;
+                }
+            });
+            startStage(executor, Stage.DECODE, decodeQueue, scaleQueue, Stage.SCALE, budget, failures, null, job -> {
+                job.decoded = ImageScaleUtil.readSubsampled(new MemoryCacheImageInputStream(job.compressed.toInputStream()), scale);
+                job.compressed = null;
+            });
+            startStage(executor, Stage.SCALE, scaleQueue, encodeQueue, Stage.ENCODE, budget, failures, null, job -> {
+                try (DecodedImage decoded = job.decoded) {
+                    job.scaled = ImageScaleUtil.scale(decoded, scale);
+                    ImageScaleUtil.recycleDecoded(decoded, job.scaled);
+                }
+                job.decoded = null;
+            });
+            startStage(executor, Stage.ENCODE, encodeQueue, uploadQueue, Stage.UPLOAD, budget, failures, null, job -> {
+                String formatName = job.keyName.substring(job.keyName.lastIndexOf(".") + 1);
+                job.encoded = ImageScaleUtil.encode(job.scaled, formatName);
+                ImageScaleUtil.recycle(job.scaled);
+                job.scaled = null;
+            });
+            startStage(executor, Stage.UPLOAD, uploadQueue, null, null, budget, failures, finished, job -> {
+                boolean uploaded = AwsS3Util.putObjectFromBuffer(destBucket, job.keyName, job.encoded);
+                EncodeBufferPool.release(job.encoded);
+                job.encoded = null;
+                if (!uploaded) {
+                    throw new IOException("upload fail");
+                }
+            });
+
+            // list stage
+            while (objects.hasNext()) {
+                S3Object object = objects.next();
+                fetchQueue.put(new ScaleJob(object.key(), object.size()));
+            }
+            for (int i = 0; i < threads.get(Stage.FETCH); i++) {
+                fetchQueue.put(END);
+            }
+            finished.await();
+        } finally {
+            executor.shutdownNow();
+        }
+        return failures.get();
+    }
+
+    /**
+     * start the threads of one stage. a failed job, errors included, is logged, gives back its bytes and
+     * leaves the pipeline. an interrupt stops the thread. the last thread of the stage to stop, however it stops,
+     * passes one END per thread on to the next stage, so the stages after it always finish.
+     */
+    private void startStage(ExecutorService executor, Stage stage, BlockingQueue<ScaleJob> in, BlockingQueue<ScaleJob> out,
+                            Stage next, ByteBudget budget, AtomicInteger failures, CountDownLatch finished, StageWork work) {
+        int count = threads.get(stage);
+        AtomicInteger alive = new AtomicInteger(count);
+        for (int t = 0; t < count; t++) {
+            executor.execute(() -> {
+                try {
+                    while (true) {
+                        ScaleJob job = in.take();
+                        if (job == END) {
+                            break;
+                        }
+                        try {
+                            work.apply(job);
+                        } catch (InterruptedException e) {
+                            discard(job, budget);
+                            throw e;
+                        } catch (Throwable e) {
+                            // an error such as an OutOfMemoryError on a large decode fails the object, not the stage
+                            failures.incrementAndGet();
+                            discard(job, budget);
+                            log.error("{} stage of [{}] fail ", stage, job.keyName, e);
+                            continue;
+                        }
+                        if (out != null) {
+                            try {
+                                out.put(job);
+                            } catch (InterruptedException e) {
+                                discard(job, budget);
+                                throw e;
+                            }
+                        } else {
+                            budget.release(job.reserved);
+                            job.reserved = 0;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    if (alive.decrementAndGet() == 0 && out != null) {
+                        passEnd(out, threads.get(next));
+                    }
+                    if (finished != null) {
+                        finished.countDown();
+                    }
+                }
+            });
+        }
+    }
+
+    private static void passEnd(BlockingQueue<ScaleJob> out, int count) {
+        try {
+            for (int i = 0; i < count; i++) {
+                out.put(END);
+            }
+        } catch (InterruptedException e) {
+            // only when the pipeline is shut down, nobody waits for the END anymore
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * give back what a job that leaves the pipeline early still holds.
+     */
+    private static void discard(ScaleJob job, ByteBudget budget) {
+        budget.release(job.reserved);
+        job.reserved = 0;
+        job.compressed = null;
+        if (job.decoded != null) {
+            job.decoded.close();
+            job.decoded = null;
+        }
+        if (job.scaled != null) {
+            ImageScaleUtil.recycle(job.scaled);
+            job.scaled = null;
+        }
+        EncodeBufferPool.release(job.encoded);
+        job.encoded = null;
+    }
+
+    @FunctionalInterface
+    private interface StageWork {
+        void apply(ScaleJob job) throws Exception;
+    }
+
+    /**
+     * one object on its way through the stages, each stage drops what the next one no longer needs.
+     */
+    private static final class ScaleJob {
+        private final String keyName;
+        /**
+         * the listed size, null when the listing had none.
+         */
+        private final Long size;
+        private int reserved;
+        private ExposedByteArrayOutputStream compressed;
+        private DecodedImage decoded;
+        private BufferedImage scaled;
+        private ExposedByteArrayOutputStream encoded;
+
+        private ScaleJob(String keyName, Long size) {
+            this.keyName = keyName;
+            this.size = size;
+        }
+    }
+}
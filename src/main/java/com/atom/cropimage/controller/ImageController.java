@@ -0,0 +1,261 @@
+package com.atom.cropimage.controller;
+
+import com.atom.cropimage.utils.AwsS3Util;
+import com.atom.cropimage.utils.ImageFormats;
+import com.atom.cropimage.utils.ImageScaleUtil;
+import com.atom.cropimage.utils.RenditionCache;
+import com.atom.cropimage.utils.RenditionSpec;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.RasterFormatException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * scale or crop one S3 object on request:
+ * GET /images/{bucket}/{key}?width=&height=&scale=&crop=x,y,w,h&format=&quality=
+ * <p>
+ * the source is decoded and scaled before the response is committed, so a missing object or a bad crop
+ * still gets its status code; the encoder then writes straight to the response, the output is never buffered whole.
+ * width and height fit the image inside the box without enlarging it, either one alone bounds only that side;
+ * scale is in (0, 1]. crop is applied to the source before scaling, only the cropped region is decoded.
+ * without format the format of the key suffix is kept.
+ * <p>
+ * encoded results are kept in a {@link RenditionCache} keyed by bucket, key, eTag and the transform,
+ * a HEAD of the object tells whether a cached result is still current, so a hit neither downloads nor scales.
+ * a miss is cached as it is streamed to the response, under the eTag the GET returned with the body.
+ *
+ * @author Atom
+ */
+@Slf4j
+@RestController
+@RequestMapping("/images")
+public class ImageController {
+
+    private static final String RENDITION_NAME = "request";
+    private static final AntPathMatcher pathMatcher = new AntPathMatcher();
+
+    private final RenditionCache cache;
+
+    /**
+     * @param dir the disk tier directory, empty for a new temporary directory
+     */
+    public ImageController(@Value("${rendition.cache.memory-size:64MB}") DataSize memorySize,
+                           @Value("${rendition.cache.disk-size:1GB}") DataSize diskSize,
+                           @Value("${rendition.cache.max-entry-size:4MB}") DataSize maxEntrySize,
+                           @Value("${rendition.cache.dir:}") String dir) throws IOException {
+        Path directory = dir.isEmpty() ? Files.createTempDirectory("rendition-cache") : Paths.get(dir);
+        cache = new RenditionCache(memorySize.toBytes(), diskSize.toBytes(), (int) maxEntrySize.toBytes(), directory);
+        log.info("rendition cache of {} in memory, {} on disk in {}", memorySize, diskSize, directory);
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        cache.close();
+    }
+
+    @GetMapping("/{bucket}/**")
+    public ResponseEntity<StreamingResponseBody> image(@PathVariable String bucket,
+                                                       @RequestParam(required = false) Integer width,
+                                                       @RequestParam(required = false) Integer height,
+                                                       @RequestParam(required = false) Float scale,
+                                                       @RequestParam(required = false) String crop,
+                                                       @RequestParam(required = false) String format,
+                                                       @RequestParam(required = false) Float quality,
+                                                       HttpServletRequest request) throws IOException {
+        String keyName = objectKey(request);
+        RenditionSpec spec = renditionSpec(width, height, scale, format, quality);
+        Rectangle region = crop == null ? null : parseCrop(crop);
+        String mimeType = ImageFormats.mimeType(spec.formatName(keyName));
+        if (mimeType == null) {
+            throw new IllegalArgumentException("no image writer for format " + spec.formatName(keyName));
+        }
+
+        String transform = spec.cacheKey(keyName, ImageScaleUtil.getEncoderSettings());
+        String regionKey = region == null ? "" : region.x + "," + region.y + "," + region.width + "," + region.height;
+        String eTag = AwsS3Util.headObject(bucket, keyName).eTag();
+        ResponseEntity<StreamingResponseBody> cachedResponse = cachedResponse(RenditionCache.key(bucket, keyName, eTag, transform, regionKey), mimeType);
+        if (cachedResponse != null) {
+            return cachedResponse;
+        }
+
+        BufferedImage image;
+        String cacheKey;
+        try (ResponseInputStream<GetObjectResponse> objectStream = AwsS3Util.getObjectResponseInputStream(bucket, keyName)) {
+            // the object may have been overwritten since the HEAD, the rendition is cached under the eTag of the body it is made of
+            String bodyETag = objectStream.response().eTag();
+            cacheKey = RenditionCache.key(bucket, keyName, bodyETag, transform, regionKey);
+            if (!bodyETag.equals(eTag)) {
+                cachedResponse = cachedResponse(cacheKey, mimeType);
+                if (cachedResponse != null) {
+                    // cached for the new version already, drop the connection instead of draining the body
+                    objectStream.abort();
+                    return cachedResponse;
+                }
+            }
+            image = ImageScaleUtil.renderScaled(new BufferedInputStream(objectStream, AwsS3Util.DOWNLOAD_BUFFER_SIZE), region, spec);
+        }
+        StreamingResponseBody body = out -> {
+            CachingOutputStream cachingOut = new CachingOutputStream(out, cache.getMaxEntryBytes());
+            try {
+                ImageScaleUtil.writeRendition(image, keyName, spec, cachingOut);
+            } finally {
+                ImageScaleUtil.recycle(image);
+            }
+            byte[] encoded = cachingOut.toByteArray();
+            if (encoded != null) {
+                cache.put(cacheKey, encoded);
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(mimeType)).body(body);
+    }
+
+    /**
+     * @return null when the rendition is not cached
+     */
+    private ResponseEntity<StreamingResponseBody> cachedResponse(String cacheKey, String mimeType) {
+        ByteBuffer cached = cache.get(cacheKey);
+        if (cached == null) {
+            return null;
+        }
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(mimeType)).contentLength(cached.remaining())
+                .body(out -> Channels.newChannel(out).write(cached));
+    }
+
+    @ExceptionHandler({IllegalArgumentException.class, RasterFormatException.class})
+    public ResponseEntity<String> badRequest(RuntimeException e) {
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST).contentType(MediaType.TEXT_PLAIN).body(e.getMessage());
+    }
+
+    /**
+     * a HEAD of a missing object fails with its status code only.
+     */
+    @ExceptionHandler(S3Exception.class)
+    public ResponseEntity<String> s3Error(S3Exception e) {
+        if (e.statusCode() == HttpStatus.NOT_FOUND.value()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).contentType(MediaType.TEXT_PLAIN).body("no such object");
+        }
+        return ResponseEntity.status(HttpStatus.BAD_GATEWAY).contentType(MediaType.TEXT_PLAIN).body("s3 error " + e.statusCode());
+    }
+
+    /**
+     * the part of the path matched by **, the key may contain slashes.
+     */
+    private static String objectKey(HttpServletRequest request) {
+        String path = (String) request.getAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
+        String pattern = (String) request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        String keyName = pathMatcher.extractPathWithinPattern(pattern, path);
+        if (keyName.isEmpty()) {
+            throw new IllegalArgumentException("object key is missing");
+        }
+        return keyName;
+    }
+
+    private static RenditionSpec renditionSpec(Integer width, Integer height, Float scale, String format, Float quality) {
+        RenditionSpec spec;
+        if (scale != null) {
+            if (width != null || height != null) {
+                throw new IllegalArgumentException("scale can not be combined with width or height");
+            }
+            if (!(scale > 0 && scale <= 1)) {
+                throw new IllegalArgumentException("scale must be in (0, 1], got " + scale);
+            }
+            spec = RenditionSpec.ofScale(RENDITION_NAME, scale);
+        } else if (width != null || height != null) {
+            spec = RenditionSpec.ofBox(RENDITION_NAME, width != null ? width : Integer.MAX_VALUE, height != null ? height : Integer.MAX_VALUE);
+        } else {
+            spec = RenditionSpec.ofScale(RENDITION_NAME, 1f);
+        }
+        if (format != null) {
+            spec = spec.format(format);
+        }
+        if (quality != null) {
+            if (!(quality >= 0 && quality <= 1)) {
+                throw new IllegalArgumentException("quality must be in [0, 1], got " + quality);
+            }
+            spec = spec.quality(quality);
+        }
+        return spec;
+    }
+
+    /**
+     * x,y,width,height in source pixels.
+     */
+    private static Rectangle parseCrop(String crop) {
+        String[] parts = crop.split(",");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("crop must be x,y,width,height, got " + crop);
+        }
+        int[] values = new int[4];
+        for (int i = 0; i < 4; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return new Rectangle(values[0], values[1], values[2], values[3]);
+    }
+
+    /**
+     * writes through to the response and keeps a copy of what was written for the cache,
+     * the copy is dropped once it grows past the limit.
+     */
+    private static final class CachingOutputStream extends FilterOutputStream {
+
+        private final int limit;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        CachingOutputStream(OutputStream out, int limit) {
+            super(out);
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (copy != null) {
+                copy.write(b);
+                checkLimit();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (copy != null) {
+                copy.write(b, off, len);
+                checkLimit();
+            }
+        }
+
+        /**
+         * @return null when more than the limit was written
+         */
+        byte[] toByteArray() {
+            return copy == null ? null : copy.toByteArray();
+        }
+
+        private void checkLimit() {
+            if (copy.size() > limit) {
+                copy = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.atom.cropimage.resample;
+
+/**
+ * exact 2x2 box reduction in integer arithmetic, used as the fast step of {@link ProgressiveBilinearResampler}.
+ * the requested size is ignored beyond width = source / 2, height = source / 2.
+ *
+ * @author Atom
+ */
+class HalvingResampler extends RowResampler {
+
+    @Override
+    protected RowPass prepare(ImagePixels source, ImagePixels dest) {
+        int[] src = source.getData();
+        int[] dst = dest.getData();
+        int srcWidth = source.getWidth();
+        int dstWidth = dest.getWidth();
+        boolean alpha = source.hasAlpha();
+        return (from, to) -> {
+            for (int y = from; y < to; y++) {
+                int top = 2 * y * srcWidth;
+                int bottom = top + srcWidth;
+                int dstOffset = y * dstWidth;
+                for (int x = 0; x < dstWidth; x++) {
+                    int p0 = src[top + 2 * x];
+                    int p1 = src[top + 2 * x + 1];
+                    int p2 = src[bottom + 2 * x];
+                    int p3 = src[bottom + 2 * x + 1];
+                    int a = alpha ? ((p0 >>> 24) + (p1 >>> 24) + (p2 >>> 24) + (p3 >>> 24) + 2) >> 2 : 0xff;
+                    int r = (((p0 >> 16) & 0xff) + ((p1 >> 16) & 0xff) + ((p2 >> 16) & 0xff) + ((p3 >> 16) & 0xff) + 2) >> 2;
+                    int g = (((p0 >> 8) & 0xff) + ((p1 >> 8) & 0xff) + ((p2 >> 8) & 0xff) + ((p3 >> 8) & 0xff) + 2) >> 2;
+                    int b = ((p0 & 0xff) + (p1 & 0xff) + (p2 & 0xff) + (p3 & 0xff) + 2) >> 2;
+                    dst[dstOffset + x] = a << 24 | r << 16 | g << 8 | b;
+                }
+            }
+        };
+    }
+}
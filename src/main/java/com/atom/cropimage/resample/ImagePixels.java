@@ -0,0 +1,158 @@
+package com.atom.cropimage.resample;
+
+import java.awt.image.*;
+
+/**
+ * packed 0xAARRGGBB pixels of an image, one int per pixel, rows are stored without padding.
+ * the backing array may be longer than width * height when it comes from the {@link PixelBufferPool}.
+ *
+ * @author Atom
+ */
+public final class ImagePixels {
+
+    private static final int[] RGB_MASKS = {0x00ff0000, 0x0000ff00, 0x000000ff};
+    private static final int[] ARGB_MASKS = {0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000};
+
+    private final int width;
+    private final int height;
+    private final boolean alpha;
+    private final int[] data;
+    /**
+     * the data was allocated for this instance, as opposed to wrapping the raster of an image.
+     */
+    private final boolean owned;
+
+    private ImagePixels(int width, int height, boolean alpha, int[] data, boolean owned) {
+        this.width = width;
+        this.height = height;
+        this.alpha = alpha;
+        this.data = data;
+        this.owned = owned;
+    }
+
+    public static ImagePixels create(int width, int height, boolean alpha) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("width and height must be positive, got " + width + "x" + height);
+        }
+        return new ImagePixels(width, height, alpha, PixelBufferPool.acquire(width * height), true);
+    }
+
+    /**
+     * give the pixel buffer back to the {@link PixelBufferPool}, neither this nor any image wrapping it may be used afterwards.
+     * pixels wrapping the raster of an image are left alone.
+     */
+    public void release() {
+        if (owned) {
+            PixelBufferPool.release(data);
+        }
+    }
+
+    /**
+     * wrap the raster of a TYPE_INT_RGB / TYPE_INT_ARGB image without copying,
+     * other layouts are converted once.
+     *
+     * @param image
+     * @return
+     */
+    public static ImagePixels of(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean alpha = image.getColorModel().hasAlpha();
+        WritableRaster raster = image.getRaster();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                if (isCompact(raster)) {
+                    return new ImagePixels(width, height, alpha, ((DataBufferInt) raster.getDataBuffer()).getData(), false);
+                }
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                if (isCompact(raster)) {
+                    return new ImagePixels(width, height, false, fromBgr(((DataBufferByte) raster.getDataBuffer()).getData(), width * height), true);
+                }
+                break;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                if (isCompact(raster)) {
+                    return new ImagePixels(width, height, true, fromAbgr(((DataBufferByte) raster.getDataBuffer()).getData(), width * height), true);
+                }
+                break;
+            default:
+                break;
+        }
+        int[] pixels = PixelBufferPool.acquire(width * height);
+        image.getRGB(0, 0, width, height, pixels, 0, width);
+        return new ImagePixels(width, height, alpha, pixels, true);
+    }
+
+    /**
+     * the raster owns its whole data buffer, i.e. it is not a sub image.
+     */
+    private static boolean isCompact(WritableRaster raster) {
+        return raster.getParent() == null
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0
+                && raster.getDataBuffer().getNumBanks() == 1
+                && raster.getDataBuffer().getOffset() == 0
+                && raster.getDataBuffer().getSize() == raster.getWidth() * raster.getHeight() * raster.getSampleModel().getNumDataElements();
+    }
+
+    private static int[] fromBgr(byte[] bytes, int length) {
+        int[] pixels = PixelBufferPool.acquire(length);
+        for (int i = 0, j = 0; i < length; i++, j += 3) {
+            pixels[i] = 0xff000000
+                    | (bytes[j + 2] & 0xff) << 16
+                    | (bytes[j + 1] & 0xff) << 8
+                    | (bytes[j] & 0xff);
+        }
+        return pixels;
+    }
+
+    private static int[] fromAbgr(byte[] bytes, int length) {
+        int[] pixels = PixelBufferPool.acquire(length);
+        for (int i = 0, j = 0; i < length; i++, j += 4) {
+            pixels[i] = (bytes[j] & 0xff) << 24
+                    | (bytes[j + 3] & 0xff) << 16
+                    | (bytes[j + 2] & 0xff) << 8
+                    | (bytes[j + 1] & 0xff);
+        }
+        return pixels;
+    }
+
+    /**
+     * wrap the pixels into a TYPE_INT_RGB / TYPE_INT_ARGB image without copying.
+     *
+     * @return
+     */
+    public BufferedImage toBufferedImage() {
+        DataBufferInt buffer = new DataBufferInt(data, width * height);
+        ColorModel colorModel;
+        WritableRaster raster;
+        if (alpha) {
+            colorModel = ColorModel.getRGBdefault();
+            raster = Raster.createPackedRaster(buffer, width, height, width, ARGB_MASKS, null);
+        } else {
+            colorModel = new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1], RGB_MASKS[2]);
+            raster = Raster.createPackedRaster(buffer, width, height, width, RGB_MASKS, null);
+        }
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean hasAlpha() {
+        return alpha;
+    }
+
+    /**
+     * the backing array, shared, not a copy.
+     */
+    public int[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,64 @@
+package com.atom.cropimage.resample;
+
+/**
+ * one dimensional filter kernel used by {@link SeparableResampler}.
+ *
+ * @author Atom
+ */
+interface Kernel {
+
+    Kernel BOX = new Kernel() {
+        @Override
+        public double support() {
+            return 0.5;
+        }
+
+        @Override
+        public double weight(double x) {
+            return x >= -0.5 && x < 0.5 ? 1.0 : 0.0;
+        }
+    };
+
+    Kernel TRIANGLE = new Kernel() {
+        @Override
+        public double support() {
+            return 1.0;
+        }
+
+        @Override
+        public double weight(double x) {
+            x = Math.abs(x);
+            return x < 1.0 ? 1.0 - x : 0.0;
+        }
+    };
+
+    Kernel LANCZOS3 = new Kernel() {
+        @Override
+        public double support() {
+            return 3.0;
+        }
+
+        @Override
+        public double weight(double x) {
+            if (x > -3.0 && x < 3.0) {
+                return sinc(x) * sinc(x / 3.0);
+            }
+            return 0.0;
+        }
+
+        private double sinc(double x) {
+            if (x == 0.0) {
+                return 1.0;
+            }
+            x *= Math.PI;
+            return Math.sin(x) / x;
+        }
+    };
+
+    /**
+     * half width of the kernel at scale 1.
+     */
+    double support();
+
+    double weight(double x);
+}
@@ -0,0 +1,32 @@
+package com.atom.cropimage.resample;
+
+/**
+ * nearest neighbour, a plain index lookup per destination pixel.
+ *
+ * @author Atom
+ */
+class NearestResampler extends RowResampler {
+
+    @Override
+    protected RowPass prepare(ImagePixels source, ImagePixels dest) {
+        int srcWidth = source.getWidth();
+        int srcHeight = source.getHeight();
+        int dstWidth = dest.getWidth();
+        int dstHeight = dest.getHeight();
+        int[] columns = new int[dstWidth];
+        for (int x = 0; x < dstWidth; x++) {
+            columns[x] = Math.min(srcWidth - 1, (int) ((x + 0.5) * srcWidth / dstWidth));
+        }
+        int[] src = source.getData();
+        int[] dst = dest.getData();
+        return (from, to) -> {
+            for (int y = from; y < to; y++) {
+                int srcOffset = Math.min(srcHeight - 1, (int) ((y + 0.5) * srcHeight / dstHeight)) * srcWidth;
+                int dstOffset = y * dstWidth;
+                for (int x = 0; x < dstWidth; x++) {
+                    dst[dstOffset + x] = src[srcOffset + columns[x]];
+                }
+            }
+        };
+    }
+}
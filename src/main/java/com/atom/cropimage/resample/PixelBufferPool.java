@@ -0,0 +1,175 @@
+package com.atom.cropimage.resample;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * size bucketed pool of int[] and byte[] pixel buffers shared by all threads.
+ * decoded and destination rasters of a few MB are humongous objects for G1, reusing them across images
+ * avoids allocating and zeroing one per image. lengths are rounded up to 2^k * {1, 1.25, 1.5, 1.75},
+ * so a buffer is at most 25% larger than requested and the number of buckets stays small.
+ * buffers smaller than {@link #MIN_POOLED_BYTES} are not worth pooling and are allocated exactly.
+ * the pool keeps at most an eighth of the heap by default.
+ *
+ * @author Atom
+ */
+public final class PixelBufferPool {
+
+    static final int MIN_POOLED_BYTES = 256 * 1024;
+
+    private static final Map<Integer, Deque<int[]>> intBuckets = new ConcurrentHashMap<>();
+    private static final Map<Integer, Deque<byte[]>> byteBuckets = new ConcurrentHashMap<>();
+    private static final AtomicLong retainedBytes = new AtomicLong();
+    private static volatile long maxRetainedBytes = Runtime.getRuntime().maxMemory() / 8;
+
+    private PixelBufferPool() {
+    }
+
+    /**
+     * an int buffer of at least the given length, its content is undefined.
+     *
+     * @param length
+     * @return
+     */
+    public static int[] acquire(int length) {
+        if (4L * length < MIN_POOLED_BYTES) {
+            return new int[length];
+        }
+        int bucketLength = bucketLength(length);
+        int[] buffer = poll(intBuckets, bucketLength, 4L * bucketLength);
+        return buffer != null ? buffer : new int[bucketLength];
+    }
+
+    /**
+     * a byte buffer of at least the given length, its content is undefined.
+     *
+     * @param length
+     * @return
+     */
+    public static byte[] acquireBytes(int length) {
+        if (length < MIN_POOLED_BYTES) {
+            return new byte[length];
+        }
+        int bucketLength = bucketLength(length);
+        byte[] buffer = poll(byteBuckets, bucketLength, bucketLength);
+        return buffer != null ? buffer : new byte[bucketLength];
+    }
+
+    /**
+     * give a buffer back, the caller must not use it or any image wrapping it afterwards.
+     * buffers not obtained from {@link #acquire(int)} or beyond the retained limit are left to the GC.
+     *
+     * @param buffer
+     */
+    public static void release(int[] buffer) {
+        if (buffer != null && 4L * buffer.length >= MIN_POOLED_BYTES && bucketLength(buffer.length) == buffer.length) {
+            offer(intBuckets, buffer, buffer.length, 4L * buffer.length);
+        }
+    }
+
+    /**
+     * same as {@link #release(int[])} for buffers obtained from {@link #acquireBytes(int)}.
+     *
+     * @param buffer
+     */
+    public static void release(byte[] buffer) {
+        if (buffer != null && buffer.length >= MIN_POOLED_BYTES && bucketLength(buffer.length) == buffer.length) {
+            offer(byteBuckets, buffer, buffer.length, buffer.length);
+        }
+    }
+
+    /**
+     * a TYPE_3BYTE_BGR image on a pooled buffer, e.g. as destination of a JPEG decode.
+     *
+     * @param width
+     * @param height
+     * @return
+     */
+    public static BufferedImage createBgrImage(int width, int height) {
+        int length = width * height * 3;
+        DataBufferByte buffer = new DataBufferByte(acquireBytes(length), length);
+        WritableRaster raster = Raster.createInterleavedRaster(buffer, width, height, width * 3, 3, new int[]{2, 1, 0}, null);
+        ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), new int[]{8, 8, 8},
+                false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /**
+     * give the buffer of an image back, the image must not be used afterwards.
+     * sub images and images whose buffer was not pooled are ignored.
+     *
+     * @param image
+     */
+    public static void recycle(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        if (raster.getParent() != null) {
+            return;
+        }
+        DataBuffer buffer = raster.getDataBuffer();
+        if (buffer instanceof DataBufferInt) {
+            release(((DataBufferInt) buffer).getData());
+        } else if (buffer instanceof DataBufferByte) {
+            release(((DataBufferByte) buffer).getData());
+        }
+    }
+
+    /**
+     * upper bound of the bytes kept in the pool while not in use.
+     */
+    public static void setMaxRetainedBytes(long bytes) {
+        maxRetainedBytes = bytes;
+    }
+
+    public static long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    /**
+     * drop every pooled buffer.
+     */
+    public static void clear() {
+        intBuckets.forEach((length, bucket) -> {
+            while (bucket.pollFirst() != null) {
+                retainedBytes.addAndGet(-4L * length);
+            }
+        });
+        byteBuckets.forEach((length, bucket) -> {
+            while (bucket.pollFirst() != null) {
+                retainedBytes.addAndGet(-length);
+            }
+        });
+    }
+
+    private static <T> T poll(Map<Integer, Deque<T>> buckets, int bucketLength, long bytes) {
+        Deque<T> bucket = buckets.get(bucketLength);
+        T buffer = bucket == null ? null : bucket.pollFirst();
+        if (buffer != null) {
+            retainedBytes.addAndGet(-bytes);
+        }
+        return buffer;
+    }
+
+    private static <T> void offer(Map<Integer, Deque<T>> buckets, T buffer, int length, long bytes) {
+        if (retainedBytes.addAndGet(bytes) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-bytes);
+            return;
+        }
+        buckets.computeIfAbsent(length, k -> new ConcurrentLinkedDeque<>()).offerFirst(buffer);
+    }
+
+    static int bucketLength(int length) {
+        int base = Integer.highestOneBit(length);
+        if (base == length) {
+            return length;
+        }
+        int step = base >> 2;
+        long rounded = base + (long) (length - base + step - 1) / step * step;
+        return (int) Math.min(rounded, Integer.MAX_VALUE - 8);
+    }
+}
@@ -0,0 +1,39 @@
+package com.atom.cropimage.resample;
+
+/**
+ * the resample filters supported by {@link com.atom.cropimage.utils.ImageScaleUtil}.
+ *
+ * @author Atom
+ */
+public enum ResampleFilter {
+
+    /**
+     * pick the closest source pixel, fastest but aliased.
+     */
+    NEAREST(new NearestResampler()),
+
+    /**
+     * halve with a 2x2 box until within 2x of the target, then finish with a bilinear pass.
+     */
+    BILINEAR(new ProgressiveBilinearResampler()),
+
+    /**
+     * area average, same result as Image.SCALE_AREA_AVERAGING without the ImageFilter pipeline.
+     */
+    BOX(new SeparableResampler(Kernel.BOX)),
+
+    /**
+     * lanczos with a support of 3, sharpest and slowest.
+     */
+    LANCZOS(new SeparableResampler(Kernel.LANCZOS3));
+
+    private final Resampler resampler;
+
+    ResampleFilter(Resampler resampler) {
+        this.resampler = resampler;
+    }
+
+    public Resampler resampler() {
+        return resampler;
+    }
+}
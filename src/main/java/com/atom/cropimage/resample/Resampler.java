@@ -0,0 +1,19 @@
+package com.atom.cropimage.resample;
+
+/**
+ * resample a packed pixel buffer to a new size.
+ *
+ * @author Atom
+ */
+public interface Resampler {
+
+    /**
+     * resample the source pixels to the given size.
+     *
+     * @param source
+     * @param width
+     * @param height
+     * @return a new pixel buffer of width x height, never the source itself.
+     */
+    ImagePixels resample(ImagePixels source, int width, int height);
+}
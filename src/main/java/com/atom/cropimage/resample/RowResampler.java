@@ -0,0 +1,85 @@
+package com.atom.cropimage.resample;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * base class for resamplers whose destination rows can be computed independently.
+ * above {@link #PARALLEL_THRESHOLD} pixels the rows are split into strips computed as fork/join subtasks,
+ * in the pool of the calling task or the common pool. every row is computed the same way in either case,
+ * so the result does not depend on the split.
+ *
+ * @author Atom
+ */
+abstract class RowResampler implements Resampler {
+
+    /**
+     * source plus destination pixels from which one image is resampled on several cores.
+     */
+    static final long PARALLEL_THRESHOLD = 4L * 1024 * 1024;
+
+    /**
+     * strips per core, more than one so a core that finishes early can steal from the others.
+     */
+    private static final int STRIPS_PER_CORE = 4;
+
+    @Override
+    public ImagePixels resample(ImagePixels source, int width, int height) {
+        ImagePixels dest = ImagePixels.create(width, height, source.hasAlpha());
+        RowPass pass = prepare(source, dest);
+        long pixels = (long) source.getWidth() * source.getHeight() + (long) width * height;
+        int parallelism = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool().getParallelism() : ForkJoinPool.getCommonPoolParallelism();
+        if (pixels < PARALLEL_THRESHOLD || parallelism <= 1 || height < 2) {
+            pass.rows(0, height);
+        } else {
+            new Strip(pass, 0, height, Math.max(1, height / (parallelism * STRIPS_PER_CORE))).invoke();
+        }
+        return dest;
+    }
+
+    /**
+     * precompute everything shared by all rows, e.g. filter weights.
+     *
+     * @param source
+     * @param dest
+     * @return
+     */
+    protected abstract RowPass prepare(ImagePixels source, ImagePixels dest);
+
+    interface RowPass {
+
+        /**
+         * fill the destination rows [from, to), must be safe to call concurrently for disjoint ranges.
+         */
+        void rows(int from, int to);
+    }
+
+    /**
+     * rows [from, to) split in halves until a strip has at most minRows rows.
+     */
+    private static final class Strip extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final RowPass pass;
+        private final int from;
+        private final int to;
+        private final int minRows;
+
+        private Strip(RowPass pass, int from, int to, int minRows) {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+            this.minRows = minRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= minRows) {
+                pass.rows(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new Strip(pass, from, mid, minRows), new Strip(pass, mid, to, minRows));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.atom.cropimage.resample;
+
+import java.util.Arrays;
+
+/**
+ * two pass resampler for separable kernels, vertical pass into a float row then horizontal pass.
+ * each destination row only depends on the source, so rows can be computed in any order.
+ *
+ * @author Atom
+ */
+class SeparableResampler extends RowResampler {
+
+    private final Kernel kernel;
+
+    SeparableResampler(Kernel kernel) {
+        this.kernel = kernel;
+    }
+
+    @Override
+    protected RowPass prepare(ImagePixels source, ImagePixels dest) {
+        Contributions horizontal = Contributions.compute(source.getWidth(), dest.getWidth(), kernel);
+        Contributions vertical = Contributions.compute(source.getHeight(), dest.getHeight(), kernel);
+        int[] src = source.getData();
+        int[] dst = dest.getData();
+        int srcWidth = source.getWidth();
+        int dstWidth = dest.getWidth();
+        boolean alpha = source.hasAlpha();
+        int channels = alpha ? 4 : 3;
+        return (from, to) -> {
+            float[] row = new float[srcWidth * channels];
+            for (int y = from; y < to; y++) {
+                Arrays.fill(row, 0f);
+                int wBase = y * vertical.stride;
+                int start = vertical.start[y];
+                int count = vertical.count[y];
+                for (int k = 0; k < count; k++) {
+                    float w = vertical.weights[wBase + k];
+                    int offset = (start + k) * srcWidth;
+                    for (int x = 0, i = 0; x < srcWidth; x++, i += channels) {
+                        int p = src[offset + x];
+                        row[i] += w * ((p >> 16) & 0xff);
+                        row[i + 1] += w * ((p >> 8) & 0xff);
+                        row[i + 2] += w * (p & 0xff);
+                        if (alpha) {
+                            row[i + 3] += w * (p >>> 24);
+                        }
+                    }
+                }
+                int dstOffset = y * dstWidth;
+                for (int x = 0; x < dstWidth; x++) {
+                    int hBase = x * horizontal.stride;
+                    int i = horizontal.start[x] * channels;
+                    float r = 0f, g = 0f, b = 0f, a = 0f;
+                    for (int k = 0, n = horizontal.count[x]; k < n; k++, i += channels) {
+                        float w = horizontal.weights[hBase + k];
+                        r += w * row[i];
+                        g += w * row[i + 1];
+                        b += w * row[i + 2];
+                        if (alpha) {
+                            a += w * row[i + 3];
+                        }
+                    }
+                    dst[dstOffset + x] = (alpha ? clamp(a) : 0xff) << 24 | clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+                }
+            }
+        };
+    }
+
+    private static int clamp(float value) {
+        int v = (int) (value + 0.5f);
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+
+    /**
+     * the source indices and normalized weights contributing to each destination index.
+     */
+    static final class Contributions {
+        final int[] start;
+        final int[] count;
+        final float[] weights;
+        final int stride;
+
+        private Contributions(int size, int stride) {
+            this.start = new int[size];
+            this.count = new int[size];
+            this.weights = new float[size * stride];
+            this.stride = stride;
+        }
+
+        static Contributions compute(int srcSize, int dstSize, Kernel kernel) {
+            double scale = (double) srcSize / dstSize;
+            // widen the kernel when downscaling so every source pixel contributes
+            double filterScale = Math.max(scale, 1.0);
+            double support = kernel.support() * filterScale;
+            Contributions c = new Contributions(dstSize, (int) Math.ceil(support) * 2 + 2);
+            for (int i = 0; i < dstSize; i++) {
+                double center = (i + 0.5) * scale;
+                int lo = Math.max(0, (int) Math.floor(center - support));
+                int hi = Math.min(srcSize, (int) Math.ceil(center + support));
+                int base = i * c.stride;
+                double sum = 0;
+                for (int j = lo; j < hi; j++) {
+                    double w = kernel.weight((j + 0.5 - center) / filterScale);
+                    c.weights[base + j - lo] = (float) w;
+                    sum += w;
+                }
+                if (sum == 0) {
+                    // the kernel missed every sample, fall back to the nearest one
+                    lo = Math.min(srcSize - 1, (int) center);
+                    hi = lo + 1;
+                    c.weights[base] = 1f;
+                } else if (sum != 1.0) {
+                    for (int j = lo; j < hi; j++) {
+                        c.weights[base + j - lo] /= sum;
+                    }
+                }
+                c.start[i] = lo;
+                c.count[i] = hi - lo;
+            }
+            return c;
+        }
+    }
+}
@@ -1,21 +1,42 @@
 package com.atom.cropimage.utils;
 
+import com.atom.cropimage.utils.ScaleMetrics.Stage;
+import com.google.common.collect.Streams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.extern.slf4j.Slf4j;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.core.waiters.WaiterResponse;
+import software.amazon.awssdk.http.AbortableInputStream;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3Configuration;
 import software.amazon.awssdk.services.s3.model.*;
 import software.amazon.awssdk.services.s3.waiters.S3Waiter;
 
 import javax.imageio.ImageIO;
 import java.io.*;
+import java.net.URI;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author Atom
@@ -26,19 +47,89 @@ public class AwsS3Util {
 
     private static final String ak = "xxx";
     private static final String sk = "xxx";
-    private static final S3Client s3Client;
-    private static final AwsCredentials awsCredentials;
+    /**
+     * read-ahead buffer between the http connection and the image decoder.
+     */
+    public static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+    /**
+     * files from this size on are uploaded in parts.
+     */
+    private static final long MULTIPART_THRESHOLD = 16L * 1024 * 1024;
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final long DEFAULT_PART_SIZE = 8L * 1024 * 1024;
+    private static final int PART_UPLOAD_THREADS = 8;
+    private static final int FILE_UPLOAD_THREADS = 8;
+    /**
+     * bytes of parts and small files being uploaded at the same time, across all files.
+     */
+    private static final long UPLOAD_BYTE_BUDGET = 128L * 1024 * 1024;
+    /**
+     * the maximum S3 returns per ListObjectsV2 call.
+     */
+    private static final int LIST_PAGE_SIZE = 1000;
+    private static final Set<String> READER_SUFFIXES = Arrays.stream(ImageIO.getReaderFileSuffixes())
+            .map(suffix -> suffix.toLowerCase(Locale.ROOT))
+            .collect(Collectors.toSet());
+    private static final Region REGION = Region.CN_NORTHWEST_1;
+    private static volatile S3Client s3Client;
+    private static volatile S3AsyncClient s3AsyncClient;
+    private static final ByteBudget uploadByteBudget = new ByteBudget(UPLOAD_BYTE_BUDGET);
+    /**
+     * parts and files use separate pools, a file task waits on its parts and must not starve them.
+     */
+    private static final ExecutorService partUploadExecutor = Executors.newFixedThreadPool(PART_UPLOAD_THREADS,
+            new ThreadFactoryBuilder().setNameFormat("s3-part-upload-%d").setDaemon(true).build());
+    private static final ExecutorService fileUploadExecutor = Executors.newFixedThreadPool(FILE_UPLOAD_THREADS,
+            new ThreadFactoryBuilder().setNameFormat("s3-file-upload-%d").setDaemon(true).build());
 
     static {
-        awsCredentials = AwsBasicCredentials.create(ak, sk);
-        Region region = Region.CN_NORTHWEST_1;
+        AwsCredentials awsCredentials = AwsBasicCredentials.create(ak, sk);
         s3Client = S3Client.builder()
                 .credentialsProvider(StaticCredentialsProvider.create(awsCredentials))
-                .region(region)
+                .region(REGION)
+                .build();
+        s3AsyncClient = S3AsyncClient.builder()
+                .credentialsProvider(StaticCredentialsProvider.create(awsCredentials))
+                .region(REGION)
                 .build();
     }
 
 
+    /**
+     * send every request to an S3 compatible endpoint instead of AWS, e.g. a local stand-in for tests and benchmarks.
+     * buckets are addressed by path (http://host:port/bucket/key), the stand-ins rarely resolve virtual hosts.
+     */
+    public static void useEndpoint(URI endpoint, String accessKey, String secretKey) {
+        StaticCredentialsProvider credentialsProvider = StaticCredentialsProvider.create(AwsBasicCredentials.create(accessKey, secretKey));
+        S3Configuration serviceConfiguration = S3Configuration.builder().pathStyleAccessEnabled(true).build();
+        useClients(S3Client.builder()
+                        .credentialsProvider(credentialsProvider)
+                        .region(REGION)
+                        .endpointOverride(endpoint)
+                        .serviceConfiguration(serviceConfiguration)
+                        .build(),
+                S3AsyncClient.builder()
+                        .credentialsProvider(credentialsProvider)
+                        .region(REGION)
+                        .endpointOverride(endpoint)
+                        .serviceConfiguration(serviceConfiguration)
+                        .build());
+    }
+
+    /**
+     * replace the clients all the methods of this class use. the previous clients are closed,
+     * so this must not be called while transfers are running.
+     */
+    public static synchronized void useClients(S3Client syncClient, S3AsyncClient asyncClient) {
+        S3Client previousClient = s3Client;
+        S3AsyncClient previousAsyncClient = s3AsyncClient;
+        s3Client = Objects.requireNonNull(syncClient, "syncClient");
+        s3AsyncClient = Objects.requireNonNull(asyncClient, "asyncClient");
+        previousClient.close();
+        previousAsyncClient.close();
+    }
+
+
     public static void createBucket(String bucketName) {
         try {
             S3Waiter s3Waiter = s3Client.waiter();
@@ -113,99 +204,260 @@ public class AwsS3Util {
     }
 
 
-    public static void putLocalObject(String bucketName, String objectKey, String localFilePath) {
+    /**
+     * upload a local file, files of at least {@link #MULTIPART_THRESHOLD} bytes go through a parallel multipart upload.
+     * the file is streamed from disk, never loaded onto the heap.
+     *
+     * @return false when the file was not uploaded, the error is logged
+     */
+    public static boolean putLocalObject(String bucketName, String objectKey, String localFilePath) {
+        Path path = Paths.get(localFilePath);
+        try {
+            if (Files.size(path) >= MULTIPART_THRESHOLD) {
+                putLocalObjectMultipart(bucketName, objectKey, path, DEFAULT_PART_SIZE);
+                return true;
+            }
+            PutObjectResponse response = putObject(buildPutObjectRequest(bucketName, objectKey), RequestBody.fromFile(path));
+            log.info("put object response is [{}]", response);
+            return true;
+        } catch (SdkException | IOException e) {
+            // an IOException is also thrown by a multipart upload that failed and was aborted
+            log.error("upload local file [{}] to [{}] fail ", localFilePath, objectKey, e);
+            return false;
+        }
+    }
+
+    /**
+     * multipart upload of a local file. every part is a memory mapped region of the file,
+     * parts are uploaded in parallel on the part executor, bounded by the shared in-flight byte budget.
+     * on any failure the upload is aborted so no orphan parts are left in the bucket.
+     *
+     * @param partSize at least 5 MiB, the S3 minimum for all but the last part
+     */
+    public static void putLocalObjectMultipart(String bucketName, String objectKey, Path path, long partSize) throws IOException {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("part size must be at least " + MIN_PART_SIZE + " bytes, got " + partSize);
+        }
+        long start = ScaleMetrics.start(Stage.PUT);
+        boolean succeeded = false;
         try {
-            Map<String, String> metadata = new HashMap<>();
-            metadata.put("atom-metadata-of-object", "test");
-            PutObjectRequest putOb = PutObjectRequest.builder()
+            uploadMultipart(bucketName, objectKey, path, partSize);
+            succeeded = true;
+        } finally {
+            ScaleMetrics.stop(Stage.PUT, start, succeeded);
+        }
+    }
+
+    private static void uploadMultipart(String bucketName, String objectKey, Path path, long partSize) throws IOException {
+        CreateMultipartUploadRequest createRequest = CreateMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(objectKey)
+                .metadata(buildPutObjectRequest(bucketName, objectKey).metadata())
+                .contentType(contentType(objectKey))
+                .build();
+        String uploadId = s3Client.createMultipartUpload(createRequest).uploadId();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int partCount = (int) ((size + partSize - 1) / partSize);
+            List<CompletableFuture<CompletedPart>> parts = new ArrayList<>(partCount);
+            // once a part has failed the upload is aborted, the parts not yet submitted are never uploaded
+            CompletableFuture<Void> anyFailed = new CompletableFuture<>();
+            for (int i = 0; i < partCount && !anyFailed.isDone(); i++) {
+                int partNumber = i + 1;
+                long offset = i * partSize;
+                long length = Math.min(partSize, size - offset);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                int reserved = uploadByteBudget.acquire(length);
+                if (anyFailed.isDone()) {
+                    // a part failed while this one waited for the budget
+                    uploadByteBudget.release(reserved);
+                    break;
+                }
+                CompletableFuture<CompletedPart> part = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return uploadPart(bucketName, objectKey, uploadId, partNumber, region);
+                    } finally {
+                        uploadByteBudget.release(reserved);
+                    }
+                }, partUploadExecutor);
+                part.whenComplete((completed, e) -> {
+                    if (e != null) {
+                        anyFailed.completeExceptionally(e);
+                    }
+                });
+                parts.add(part);
+            }
+            CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).join();
+            List<CompletedPart> completedParts = parts.stream().map(CompletableFuture::join).collect(Collectors.toList());
+            CompleteMultipartUploadRequest completeRequest = CompleteMultipartUploadRequest.builder()
                     .bucket(bucketName)
                     .key(objectKey)
-                    .metadata(metadata)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
                     .build();
+            CompleteMultipartUploadResponse response = s3Client.completeMultipartUpload(completeRequest);
+            ScaleMetrics.bytesOut(size);
+            log.info("multipart upload of [{}] in {} parts completed, response is [{}]", objectKey, partCount, response);
+        } catch (IOException | RuntimeException | InterruptedException e) {
+            abortMultipartUpload(bucketName, objectKey, uploadId);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw e instanceof IOException ? (IOException) e : new IOException("multipart upload of " + objectKey + " fail", e);
+        }
+    }
 
-            PutObjectResponse response = s3Client.putObject(putOb, RequestBody.fromBytes(getObjectFile(localFilePath)));
-            log.info("put object response is [{}]", response);
+    private static CompletedPart uploadPart(String bucketName, String objectKey, String uploadId, int partNumber, ByteBuffer region) {
+        UploadPartRequest uploadPartRequest = UploadPartRequest.builder()
+                .bucket(bucketName)
+                .key(objectKey)
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .build();
+        RequestBody requestBody = RequestBody.fromContentProvider(() -> new ByteBufferInputStream(region), region.remaining(), "application/octet-stream");
+        UploadPartResponse response = s3Client.uploadPart(uploadPartRequest, requestBody);
+        log.debug("uploaded part {} of [{}]", partNumber, objectKey);
+        return CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build();
+    }
+
+    private static void abortMultipartUpload(String bucketName, String objectKey, String uploadId) {
+        try {
+            s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(objectKey)
+                    .uploadId(uploadId)
+                    .build());
         } catch (S3Exception e) {
-            log.error(e.awsErrorDetails().errorMessage());
+            log.error("abort multipart upload [{}] of [{}] fail: {}", uploadId, objectKey, e.awsErrorDetails().errorMessage());
         }
     }
 
+    /**
+     * upload a stream of unknown length. available() is only exact for a ByteArrayInputStream,
+     * any other stream is buffered first so the content length is never truncated.
+     */
     public static void putLocalObjectFromInputStream(String bucketName, String objectKey, InputStream fileInputStream) {
         try {
-            Map<String, String> metadata = new HashMap<>();
-            metadata.put("atom-metadata-of-object", "test");
-            PutObjectRequest putOb = PutObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(objectKey)
-                    .metadata(metadata)
-                    .build();
+            if (fileInputStream instanceof ByteArrayInputStream) {
+                putLocalObjectFromInputStream(bucketName, objectKey, fileInputStream, fileInputStream.available());
+                return;
+            }
+            ExposedByteArrayOutputStream buffer = new ExposedByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int n;
+            while ((n = fileInputStream.read(chunk)) != -1) {
+                buffer.write(chunk, 0, n);
+            }
+            putObjectFromBuffer(bucketName, objectKey, buffer);
+        } catch (IOException e) {
+            log.error(e.getMessage());
+        }
+    }
 
-            // todo use fileInputStream.available() to get the inputStream contentLength maybe wrong, see the javaDoc of available().
-            PutObjectResponse response = s3Client.putObject(putOb, RequestBody.fromInputStream(fileInputStream, fileInputStream.available()));
+    public static void putLocalObjectFromInputStream(String bucketName, String objectKey, InputStream fileInputStream, long contentLength) {
+        try {
+            PutObjectResponse response = putObject(buildPutObjectRequest(bucketName, objectKey), RequestBody.fromInputStream(fileInputStream, contentLength));
             log.info("put object response is [{}]", response);
-        } catch (S3Exception | IOException e) {
+        } catch (S3Exception e) {
             log.error(e.getMessage());
         }
     }
 
+    /**
+     * upload the encoder's buffer as is, the request body reads straight from it with the exact length.
+     *
+     * @return false when S3 rejected the upload, the error is logged
+     */
+    public static boolean putObjectFromBuffer(String bucketName, String objectKey, ExposedByteArrayOutputStream buffer) {
+        try {
+            RequestBody requestBody = RequestBody.fromContentProvider(buffer::toInputStream, buffer.size(), contentType(objectKey));
+            PutObjectResponse response = putObject(buildPutObjectRequest(bucketName, objectKey), requestBody);
+            log.info("put object response is [{}]", response);
+            return true;
+        } catch (S3Exception e) {
+            log.error(e.getMessage());
+            return false;
+        }
+    }
 
     /**
-     * Return a byte array
+     * non-blocking upload of the encoder's buffer, the body is published without a copy.
      */
-    private static byte[] getObjectFile(String filePath) {
-        FileInputStream fileInputStream = null;
-        byte[] bytesArray = null;
+    public static CompletableFuture<PutObjectResponse> putObjectFromBufferAsync(String bucketName, String objectKey, ExposedByteArrayOutputStream buffer) {
+        ByteBufferAsyncRequestBody requestBody = new ByteBufferAsyncRequestBody(buffer.toByteBuffer(), contentType(objectKey));
+        long start = ScaleMetrics.startAsync(Stage.PUT);
+        return s3AsyncClient.putObject(buildPutObjectRequest(bucketName, objectKey), requestBody)
+                .whenComplete((response, e) -> {
+                    ScaleMetrics.stopAsync(Stage.PUT, start, e == null);
+                    if (e == null) {
+                        ScaleMetrics.bytesOut(buffer.size());
+                        log.info("put object response is [{}]", response);
+                    }
+                });
+    }
+
+    private static PutObjectResponse putObject(PutObjectRequest request, RequestBody requestBody) {
+        long start = ScaleMetrics.start(Stage.PUT);
+        boolean succeeded = false;
         try {
-            File file = new File(filePath);
-            bytesArray = new byte[(int) file.length()];
-            fileInputStream = new FileInputStream(file);
-            fileInputStream.read(bytesArray);
-        } catch (IOException e) {
-            e.printStackTrace();
+            PutObjectResponse response = s3Client.putObject(request, requestBody);
+            requestBody.optionalContentLength().ifPresent(ScaleMetrics::bytesOut);
+            succeeded = true;
+            return response;
         } finally {
-            if (fileInputStream != null) {
-                try {
-                    fileInputStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            ScaleMetrics.stop(Stage.PUT, start, succeeded);
         }
-        return bytesArray;
     }
 
+    private static PutObjectRequest buildPutObjectRequest(String bucketName, String objectKey) {
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("atom-metadata-of-object", "test");
+        return PutObjectRequest.builder()
+                .bucket(bucketName)
+                .key(objectKey)
+                .metadata(metadata)
+                .build();
+    }
+
+    private static String contentType(String objectKey) {
+        String contentType = URLConnection.guessContentTypeFromName(objectKey);
+        return contentType == null ? "application/octet-stream" : contentType;
+    }
 
+
+    /**
+     * @return false when any file was not uploaded, the failed files are logged
+     * @throws FileNotFoundException
+     */
     public static boolean uploadDirectoryOrFile(final String bucketName, final File source) throws FileNotFoundException {
         log.info("uploadDirectoryOrFile invoked, bucketName: {} , Source: {}", bucketName, source.getAbsolutePath());
         if (source.isFile()) {
-            Map<String, String> metadata = new HashMap<>();
-            metadata.put("atom-metadata-of-object", "test");
-            PutObjectRequest putOb = PutObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(source.getName())
-                    .metadata(metadata)
-                    .build();
-            PutObjectResponse response = s3Client.putObject(putOb, RequestBody.fromBytes(getObjectFile(source.getAbsolutePath())));
-            log.info("put object response is [{}]", response);
+            return putLocalObject(bucketName, source.getName(), source.getAbsolutePath());
         } else if (source.isDirectory()) {
             //upload recursively
-            uploadDirectory(bucketName, source, true);
+            return uploadDirectory(bucketName, source, true);
         } else {
             throw new FileNotFoundException("File is neither a regular file nor a directory " + source);
         }
-        return true;
     }
 
-    private static void uploadDirectory(String bucketName, File source, boolean includeSubdirectories) {
+    private static boolean uploadDirectory(String bucketName, File source, boolean includeSubdirectories) {
         if (source == null || !source.exists() || !source.isDirectory()) {
             throw new IllegalArgumentException("Must provide a directory to upload");
         }
         List<File> files = new LinkedList<>();
         listFiles(source, files, includeSubdirectories);
-        uploadFileList(bucketName, source, files, includeSubdirectories);
+        List<String> failed = uploadFileList(bucketName, source, files, includeSubdirectories);
+        if (!failed.isEmpty()) {
+            log.error("{} of {} files under [{}] were not uploaded: {}", failed.size(), files.size(), source, failed);
+        }
+        return failed.isEmpty();
     }
 
-    private static void uploadFileList(String bucketName, File source, List<File> files, boolean includeSubdirectories) {
+    /**
+     * @return the keys of the files that were not uploaded
+     */
+    private static List<String> uploadFileList(String bucketName, File source, List<File> files, boolean includeSubdirectories) {
         /*
          * If the absolute path for the common/base directory does NOT end
          * in a separator (which is the case for anything but root
@@ -217,24 +469,49 @@ public class AwsS3Util {
         if (!(source.getAbsolutePath().endsWith(File.separator))) {
             startingPosition++;
         }
+        Map<String, CompletableFuture<Boolean>> uploads = new LinkedHashMap<>();
         for (File f : files) {
             // Check, if is file, since only files can be uploaded.
             if (f.isFile()) {
                 String key = f.getAbsolutePath()
                         .substring(startingPosition)
                         .replaceAll("\\\\", "/");
-
-                Map<String, String> metadata = new HashMap<>();
-                metadata.put("atom-metadata-of-object", "test");
-                PutObjectRequest putOb = PutObjectRequest.builder()
-                        .bucket(bucketName)
-                        .key(key)
-                        .metadata(metadata)
-                        .build();
-                PutObjectResponse response = s3Client.putObject(putOb, RequestBody.fromBytes(getObjectFile(f.getAbsolutePath())));
-                log.info("put object response is [{}]", response);
+                uploads.put(key, CompletableFuture.supplyAsync(() -> uploadFile(bucketName, key, f), fileUploadExecutor));
             }
         }
+        List<String> failed = new ArrayList<>();
+        uploads.forEach((key, upload) -> {
+            if (!upload.join()) {
+                failed.add(key);
+            }
+        });
+        return failed;
+    }
+
+    /**
+     * single put for small files, holding their size of the in-flight byte budget;
+     * large files are split into parts which take from the budget part by part.
+     *
+     * @return false when the file was not uploaded
+     * @throws CompletionException when interrupted while waiting for the budget, failing the whole upload
+     */
+    private static boolean uploadFile(String bucketName, String key, File file) {
+        long size = file.length();
+        if (size >= MULTIPART_THRESHOLD) {
+            return putLocalObject(bucketName, key, file.getAbsolutePath());
+        }
+        int reserved;
+        try {
+            reserved = uploadByteBudget.acquire(size);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+        try {
+            return putLocalObject(bucketName, key, file.getAbsolutePath());
+        } finally {
+            uploadByteBudget.release(reserved);
+        }
     }
 
     /**
@@ -258,6 +535,8 @@ public class AwsS3Util {
 
 
     public static byte[] getObjectBytes(String bucketName, String keyName) {
+        long start = ScaleMetrics.start(Stage.GET);
+        boolean succeeded = false;
         try {
             GetObjectRequest objectRequest = GetObjectRequest
                     .builder()
@@ -267,15 +546,54 @@ public class AwsS3Util {
 
             ResponseBytes<GetObjectResponse> objectBytes = s3Client.getObjectAsBytes(objectRequest);
             byte[] data = objectBytes.asByteArray();
+            ScaleMetrics.bytesIn(data.length);
+            succeeded = true;
             log.info("Successfully obtained bytes from an S3 object");
             return data;
         } catch (S3Exception e) {
             log.error(e.awsErrorDetails().errorMessage());
             throw new RuntimeException("get object bytes error ", e);
+        } finally {
+            ScaleMetrics.stop(Stage.GET, start, succeeded);
+        }
+    }
+
+    /**
+     * the metadata of an object (content length, eTag, ...) without its body.
+     */
+    public static HeadObjectResponse headObject(String bucketName, String keyName) {
+        try {
+            HeadObjectRequest objectRequest = HeadObjectRequest
+                    .builder()
+                    .key(keyName)
+                    .bucket(bucketName)
+                    .build();
+
+            return s3Client.headObject(objectRequest);
+        } catch (S3Exception e) {
+            // a HEAD error response has no body, so there is no error message
+            log.error("head object [{}] error, status code [{}]", keyName, e.statusCode());
+            throw new RuntimeException("head object error ", e);
         }
     }
 
+    /**
+     * open the object as a stream, the body is read from the connection as it is consumed
+     * through a bounded read-ahead buffer instead of being loaded into memory first.
+     * the caller must close the returned stream to release the connection.
+     */
     public static InputStream getObjectInputStream(String bucketName, String keyName) {
+        return new BufferedInputStream(getObjectResponseInputStream(bucketName, keyName), DOWNLOAD_BUFFER_SIZE);
+    }
+
+    /**
+     * open the object as an unbuffered stream, the response (content length, eTag, ...) is available before the body is read.
+     * the reads of the body are timed as the GET stage, which is recorded when the stream is closed.
+     * the caller must close the returned stream to release the connection.
+     */
+    public static ResponseInputStream<GetObjectResponse> getObjectResponseInputStream(String bucketName, String keyName) {
+        long start = ScaleMetrics.start(Stage.GET);
+        ResponseInputStream<GetObjectResponse> objectStream;
         try {
             GetObjectRequest objectRequest = GetObjectRequest
                     .builder()
@@ -283,54 +601,130 @@ public class AwsS3Util {
                     .bucket(bucketName)
                     .build();
 
-            ResponseBytes<GetObjectResponse> objectBytes = s3Client.getObjectAsBytes(objectRequest);
-            log.info("Successfully obtained bytes from an S3 object");
-            return objectBytes.asInputStream();
+            objectStream = s3Client.getObject(objectRequest);
         } catch (S3Exception e) {
+            ScaleMetrics.stop(Stage.GET, start, false);
             log.error(e.awsErrorDetails().errorMessage());
             throw new RuntimeException("get object inputStream error ", e);
+        } catch (RuntimeException e) {
+            ScaleMetrics.stop(Stage.GET, start, false);
+            throw e;
         }
+        log.info("Successfully opened S3 object [{}], content length [{}]", keyName, objectStream.response().contentLength());
+        return new ResponseInputStream<>(objectStream.response(),
+                AbortableInputStream.create(ScaleMetrics.timedBody(objectStream, start), objectStream));
+    }
+
+    /**
+     * non-blocking download of the whole object body, completed on the async client's event loop.
+     */
+    public static CompletableFuture<ResponseBytes<GetObjectResponse>> getObjectBytesAsync(String bucketName, String keyName) {
+        GetObjectRequest objectRequest = GetObjectRequest
+                .builder()
+                .key(keyName)
+                .bucket(bucketName)
+                .build();
+        long start = ScaleMetrics.startAsync(Stage.GET);
+        return s3AsyncClient.getObject(objectRequest, AsyncResponseTransformer.toBytes())
+                .whenComplete((objectBytes, e) -> {
+                    ScaleMetrics.stopAsync(Stage.GET, start, e == null);
+                    if (e == null) {
+                        ScaleMetrics.bytesIn(objectBytes.response().contentLength());
+                    }
+                });
     }
 
     public static void downloadObjectToLocalFile(String bucketName, String keyName, String localFilePath) {
-        byte[] objectBytes = getObjectBytes(bucketName, keyName);
-        try {
-            // Write the data to a local file
-            File myFile = new File(localFilePath);
-            OutputStream os = new FileOutputStream(myFile);
-            os.write(objectBytes);
-            os.close();
+        try (InputStream objectInputStream = getObjectInputStream(bucketName, keyName)) {
+            // Stream the data to a local file
+            Files.copy(objectInputStream, Paths.get(localFilePath), StandardCopyOption.REPLACE_EXISTING);
         } catch (IOException e) {
             log.error("write object data to local file error ", e);
         }
     }
 
 
-    public static List<String> listAllObjects(String bucketName) {
-        List<String> objectKeyList = new ArrayList<>();
-        ListObjectsV2Request listObjectsReqManual = ListObjectsV2Request.builder()
+    /**
+     * all readable images in the bucket with their size and eTag.
+     */
+    public static List<S3Object> listAllObjects(String bucketName) {
+        return streamAllObjects(bucketName).collect(Collectors.toList());
+    }
+
+    public static List<String> listAllObjectKeys(String bucketName) {
+        return streamAllObjectKeys(bucketName).collect(Collectors.toList());
+    }
+
+    /**
+     * lazily list the keys of all readable images in the bucket, one ListObjectsV2 call per {@link #LIST_PAGE_SIZE} keys.
+     * the next page is only requested once the stream has consumed the current one,
+     * so processing can start on page one while the rest of the bucket is still unlisted.
+     */
+    public static Stream<String> streamAllObjectKeys(String bucketName) {
+        return streamAllObjects(bucketName).map(S3Object::key);
+    }
+
+    /**
+     * same as {@link #streamAllObjectKeys(String)}, keeping the size and eTag of each object.
+     */
+    public static Stream<S3Object> streamAllObjects(String bucketName) {
+        return s3Client.listObjectsV2Paginator(listAllObjectsRequest(bucketName))
+                .contents()
+                .stream()
+                .peek(object -> log.debug(object.key()))
+                .filter(object -> isSupportedImage(object.key()));
+    }
+
+    public static Iterator<String> iterateAllObjectKeys(String bucketName) {
+        return streamAllObjectKeys(bucketName).iterator();
+    }
+
+    /**
+     * list the bucket with one shard per top level prefix ("directory"), listed in parallel.
+     * for buckets of millions of objects where one continuation chain caps the listing throughput.
+     * the stream must be closed, that stops the shards when it was not consumed to the end.
+     */
+    public static Stream<S3Object> streamAllObjectsSharded(String bucketName, int parallelism) {
+        return supportedImages(new ShardedObjectLister(s3Client, parallelism).listByDelimiter(bucketName, "/", 1));
+    }
+
+    /**
+     * list the bucket with one shard per given prefix, listed in parallel, the prefixes must not overlap.
+     * the stream must be closed, that stops the shards when it was not consumed to the end.
+     */
+    public static Stream<S3Object> streamAllObjectsSharded(String bucketName, int parallelism, Collection<String> prefixes) {
+        return supportedImages(new ShardedObjectLister(s3Client, parallelism).listPrefixes(bucketName, prefixes));
+    }
+
+    private static Stream<S3Object> supportedImages(ShardedObjectLister.Listing listing) {
+        return Streams.stream(listing)
+                .onClose(listing::close)
+                .filter(object -> isSupportedImage(object.key()));
+    }
+
+    /**
+     * non-blocking variant of {@link #streamAllObjectKeys(String)}, pages are requested on subscriber demand.
+     */
+    public static SdkPublisher<String> publishAllObjectKeys(String bucketName) {
+        return s3AsyncClient.listObjectsV2Paginator(listAllObjectsRequest(bucketName))
+                .contents()
+                .map(S3Object::key)
+                .filter(AwsS3Util::isSupportedImage);
+    }
+
+    private static ListObjectsV2Request listAllObjectsRequest(String bucketName) {
+        return ListObjectsV2Request.builder()
                 .bucket(bucketName)
-                .maxKeys(1)
+                .maxKeys(LIST_PAGE_SIZE)
                 .build();
-        boolean done = false;
-        while (!done) {
-            ListObjectsV2Response listObjResponse = s3Client.listObjectsV2(listObjectsReqManual);
-            for (S3Object content : listObjResponse.contents()) {
-                String objectKey = content.key();
-                log.info(objectKey);
-                List<String> supportFieType = Arrays.stream(ImageIO.getReaderFileSuffixes()).collect(Collectors.toList());
-                if (objectKey.contains(".") && supportFieType.contains(objectKey.substring(objectKey.lastIndexOf(".") + 1))) {
-                    objectKeyList.add(objectKey);
-                }
-            }
-            if (listObjResponse.nextContinuationToken() == null) {
-                done = true;
-            }
-            listObjectsReqManual = listObjectsReqManual.toBuilder()
-                    .continuationToken(listObjResponse.nextContinuationToken())
-                    .build();
-        }
-        return objectKeyList;
+    }
+
+    /**
+     * the key has a suffix that one of the installed ImageIO readers supports.
+     */
+    public static boolean isSupportedImage(String objectKey) {
+        int index = objectKey.lastIndexOf(".");
+        return index >= 0 && READER_SUFFIXES.contains(objectKey.substring(index + 1).toLowerCase(Locale.ROOT));
     }
 
     public static void main(String[] args) throws FileNotFoundException {
@@ -0,0 +1,63 @@
+package com.atom.cropimage.utils;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * a bounded number of bytes shared by concurrent tasks, acquire blocks until enough bytes are released.
+ * a single request larger than the whole budget is capped to the budget so it can still run, alone.
+ *
+ * @author Atom
+ */
+public class ByteBudget {
+
+    private final int capacity;
+    private final Semaphore permits;
+
+    public ByteBudget(long capacityBytes) {
+        if (capacityBytes <= 0 || capacityBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("capacity must be in (0, " + Integer.MAX_VALUE + "], got " + capacityBytes);
+        }
+        this.capacity = (int) capacityBytes;
+        this.permits = new Semaphore(capacity, true);
+    }
+
+    /**
+     * block until the bytes are available.
+     *
+     * @param bytes
+     * @return the number of bytes actually reserved, pass it to {@link #release(int)}
+     * @throws InterruptedException
+     */
+    public int acquire(long bytes) throws InterruptedException {
+        int reserved = cap(bytes);
+        permits.acquire(reserved);
+        return reserved;
+    }
+
+    /**
+     * reserve the bytes only if they are available right now.
+     *
+     * @param bytes
+     * @return the number of bytes reserved, or -1 when the budget is exhausted
+     */
+    public int tryAcquire(long bytes) {
+        int reserved = cap(bytes);
+        return permits.tryAcquire(reserved) ? reserved : -1;
+    }
+
+    public void release(int reserved) {
+        permits.release(reserved);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getAvailable() {
+        return permits.availablePermits();
+    }
+
+    private int cap(long bytes) {
+        return (int) Math.max(0, Math.min(bytes, capacity));
+    }
+}
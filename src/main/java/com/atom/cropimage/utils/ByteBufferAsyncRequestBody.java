@@ -0,0 +1,64 @@
+package com.atom.cropimage.utils;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * AsyncRequestBody publishing a buffer as one chunk without copying it,
+ * AsyncRequestBody.fromByteBuffer / fromBytes copy the whole body first.
+ * every subscription gets its own view so a retried request starts from the beginning again.
+ *
+ * @author Atom
+ */
+public class ByteBufferAsyncRequestBody implements AsyncRequestBody {
+
+    private final ByteBuffer buffer;
+    private final String contentType;
+
+    public ByteBufferAsyncRequestBody(ByteBuffer buffer, String contentType) {
+        this.buffer = buffer.asReadOnlyBuffer();
+        this.contentType = contentType;
+    }
+
+    @Override
+    public Optional<Long> contentLength() {
+        return Optional.of((long) buffer.remaining());
+    }
+
+    @Override
+    public String contentType() {
+        return contentType;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+        AtomicBoolean done = new AtomicBoolean();
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    if (done.compareAndSet(false, true)) {
+                        subscriber.onError(new IllegalArgumentException("request must be positive, got " + n));
+                    }
+                    return;
+                }
+                if (done.compareAndSet(false, true)) {
+                    if (buffer.hasRemaining()) {
+                        subscriber.onNext(buffer.duplicate());
+                    }
+                    subscriber.onComplete();
+                }
+            }
+
+            @Override
+            public void cancel() {
+                done.set(true);
+            }
+        });
+    }
+}
@@ -0,0 +1,205 @@
+package com.atom.cropimage.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * append-only log of processed source objects, one line per outcome: status, eTag, size, url encoded key.
+ * the last line of a key wins. a rerun only picks objects whose source eTag has no completed entry,
+ * so a crashed or nightly run only redoes what is missing or changed.
+ * a torn last line from a crash is ignored on load.
+ *
+ * @author Atom
+ */
+@Slf4j
+public class CheckpointManifest implements Closeable {
+
+    public enum Status {
+        COMPLETED, FAILED
+    }
+
+    private final Path file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    /**
+     * eTag / size of the objects selected by {@link #selectPending(Stream)}, until their outcome is recorded.
+     */
+    private final Map<String, S3Object> pending = new ConcurrentHashMap<>();
+    private BufferedWriter writer;
+
+    private CheckpointManifest(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * load the manifest if it exists, compacting it when it holds mostly superseded lines, and open it for appending.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static CheckpointManifest open(Path file) throws IOException {
+        CheckpointManifest manifest = new CheckpointManifest(file);
+        int lines = manifest.load();
+        if (lines > 2 * manifest.entries.size() + 1000) {
+            manifest.compact();
+        }
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        manifest.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (!endsWithNewline(file)) {
+            // terminate a torn line so the next record does not get glued onto it
+            manifest.writer.write('\n');
+            manifest.writer.flush();
+        }
+        log.info("checkpoint manifest [{}] loaded, {} objects, {} lines", file, manifest.entries.size(), lines);
+        return manifest;
+    }
+
+    private static boolean endsWithNewline(Path file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+            if (raf.length() == 0) {
+                return true;
+            }
+            raf.seek(raf.length() - 1);
+            return raf.read() == '\n';
+        }
+    }
+
+    private int load() throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                String[] fields = line.split("\t");
+                if (fields.length != 4) {
+                    log.warn("skip malformed manifest line {}: [{}]", lines, line);
+                    continue;
+                }
+                try {
+                    Status status = Status.valueOf(fields[0]);
+                    entries.put(URLDecoder.decode(fields[3], "UTF-8"), new Entry(status, fields[1], Long.parseLong(fields[2])));
+                } catch (IllegalArgumentException e) {
+                    log.warn("skip malformed manifest line {}: [{}]", lines, line);
+                }
+            }
+        }
+        return lines;
+    }
+
+    private void compact() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.write(format(entry.getKey(), entry.getValue()));
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * keep the objects that were never completed or whose source changed since, and remember their eTag.
+     *
+     * @param objects
+     * @return the keys to process
+     */
+    public List<String> selectPending(Stream<S3Object> objects) {
+        return filterPending(objects).map(S3Object::key).collect(Collectors.toList());
+    }
+
+    /**
+     * same as {@link #selectPending(Stream)}, keeping the listed objects with their size.
+     *
+     * @param objects
+     * @return the objects to process, lazily as the given stream is consumed
+     */
+    public Stream<S3Object> filterPending(Stream<S3Object> objects) {
+        return objects.filter(object -> !isCompleted(object.key(), object.eTag()))
+                .peek(object -> pending.put(object.key(), object));
+    }
+
+    public boolean isCompleted(String key, String eTag) {
+        Entry entry = entries.get(key);
+        return entry != null && entry.status == Status.COMPLETED && Objects.equals(entry.eTag, eTag);
+    }
+
+    /**
+     * record the outcome of a key selected by {@link #selectPending(Stream)}, keys not selected before are ignored.
+     *
+     * @param key
+     * @param status
+     */
+    public void record(String key, Status status) {
+        S3Object object = pending.remove(key);
+        if (object == null) {
+            log.warn("[{}] was not selected from this manifest, outcome {} not recorded", key, status);
+            return;
+        }
+        Entry entry = new Entry(status, object.eTag(), object.size() == null ? -1 : object.size());
+        entries.put(key, entry);
+        String line = format(key, entry);
+        synchronized (this) {
+            try {
+                writer.write(line);
+                // flushed per line, a crash loses at most the line being written
+                writer.flush();
+            } catch (IOException e) {
+                log.error("write checkpoint of [{}] fail ", key, e);
+            }
+        }
+    }
+
+    public void markCompleted(String key) {
+        record(key, Status.COMPLETED);
+    }
+
+    public void markFailed(String key) {
+        record(key, Status.FAILED);
+    }
+
+    private static String format(String key, Entry entry) {
+        try {
+            return entry.status + "\t" + entry.eTag + "\t" + entry.size + "\t" + URLEncoder.encode(key, "UTF-8") + "\n";
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    private static final class Entry {
+        private final Status status;
+        private final String eTag;
+        private final long size;
+
+        private Entry(Status status, String eTag, long size) {
+            this.status = status;
+            this.eTag = eTag;
+            this.size = size;
+        }
+    }
+}
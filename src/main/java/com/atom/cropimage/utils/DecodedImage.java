@@ -0,0 +1,64 @@
+package com.atom.cropimage.utils;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * a decoded image together with the size of its source, which differs when the decode was subsampled.
+ * a decode admitted against a {@link ByteBudget} holds its bytes until {@link #close()}.
+ *
+ * @author Atom
+ */
+public class DecodedImage implements AutoCloseable {
+
+    private final BufferedImage image;
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final int subsampling;
+    private ByteBudget budget;
+    private int reserved;
+
+    public DecodedImage(BufferedImage image, int sourceWidth, int sourceHeight, int subsampling) {
+        this(image, sourceWidth, sourceHeight, subsampling, null, 0);
+    }
+
+    public DecodedImage(BufferedImage image, int sourceWidth, int sourceHeight, int subsampling, ByteBudget budget, int reserved) {
+        this.image = image;
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.subsampling = subsampling;
+        this.budget = budget;
+        this.reserved = reserved;
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    /**
+     * the source pixel step used while decoding, 1 when every pixel was decoded.
+     */
+    public int getSubsampling() {
+        return subsampling;
+    }
+
+    /**
+     * give the decode bytes back to the budget once the image has been scaled, the image itself stays usable.
+     * calling it again does nothing.
+     */
+    @Override
+    public synchronized void close() {
+        if (budget != null) {
+            budget.release(reserved);
+            budget = null;
+            reserved = 0;
+        }
+    }
+}
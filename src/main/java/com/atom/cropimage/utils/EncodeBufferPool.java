@@ -0,0 +1,82 @@
+package com.atom.cropimage.utils;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * pool of encode buffers shared by all threads. a buffer keeps the capacity it grew to,
+ * so after a few images the encoder writes without growing and copying its array again.
+ * the pool keeps at most a sixteenth of the heap by default, counted by the capacity of its buffers.
+ *
+ * @author Atom
+ */
+public final class EncodeBufferPool {
+
+    private static final int INITIAL_CAPACITY = 256 * 1024;
+    /**
+     * buffers that grew beyond this, e.g. for one huge PNG, are not kept.
+     */
+    private static final int MAX_POOLED_CAPACITY = 32 * 1024 * 1024;
+
+    private static final Deque<ExposedByteArrayOutputStream> buffers = new ConcurrentLinkedDeque<>();
+    private static final AtomicLong retainedBytes = new AtomicLong();
+    private static volatile long maxRetainedBytes = Runtime.getRuntime().maxMemory() / 16;
+
+    private EncodeBufferPool() {
+    }
+
+    /**
+     * an empty buffer, from the pool when one is available.
+     *
+     * @return
+     */
+    public static ExposedByteArrayOutputStream acquire() {
+        ExposedByteArrayOutputStream buffer = buffers.pollFirst();
+        if (buffer == null) {
+            return new ExposedByteArrayOutputStream(INITIAL_CAPACITY);
+        }
+        retainedBytes.addAndGet(-buffer.capacity());
+        return buffer;
+    }
+
+    /**
+     * give a buffer back once its bytes have been consumed, e.g. after the upload completed.
+     * the caller must not use the buffer or any stream / view obtained from it afterwards.
+     *
+     * @param buffer
+     */
+    public static void release(ExposedByteArrayOutputStream buffer) {
+        if (buffer == null || buffer.capacity() > MAX_POOLED_CAPACITY) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (retainedBytes.addAndGet(capacity) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-capacity);
+            return;
+        }
+        buffer.reset();
+        buffers.offerFirst(buffer);
+    }
+
+    /**
+     * upper bound of the bytes kept in the pool while not in use.
+     */
+    public static void setMaxRetainedBytes(long bytes) {
+        maxRetainedBytes = bytes;
+    }
+
+    public static long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    /**
+     * drop every pooled buffer.
+     */
+    public static void clear() {
+        ExposedByteArrayOutputStream buffer;
+        while ((buffer = buffers.pollFirst()) != null) {
+            retainedBytes.addAndGet(-buffer.capacity());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.atom.cropimage.utils;
+
+/**
+ * how images are encoded, settings a format does not support are ignored for it.
+ * {@link #DEFAULT} leaves every setting to the writer, like ImageIO.write does.
+ *
+ * @author Atom
+ */
+public class EncoderSettings {
+
+    public static final EncoderSettings DEFAULT = new EncoderSettings(-1f, false, false, true, -1);
+
+    private final float quality;
+    private final boolean progressive;
+    private final boolean optimizeHuffman;
+    private final boolean chromaSubsampling;
+    private final int compressionLevel;
+
+    private EncoderSettings(float quality, boolean progressive, boolean optimizeHuffman, boolean chromaSubsampling, int compressionLevel) {
+        this.quality = quality;
+        this.progressive = progressive;
+        this.optimizeHuffman = optimizeHuffman;
+        this.chromaSubsampling = chromaSubsampling;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @param quality compression quality in [0, 1] for lossy formats, negative keeps the writer default
+     */
+    public EncoderSettings quality(float quality) {
+        if (quality > 1f) {
+            throw new IllegalArgumentException("quality must be at most 1, got " + quality);
+        }
+        return new EncoderSettings(quality, progressive, optimizeHuffman, chromaSubsampling, compressionLevel);
+    }
+
+    /**
+     * progressive JPEG, usually a few percent smaller and shown early by browsers, slower to encode.
+     */
+    public EncoderSettings progressive(boolean progressive) {
+        return new EncoderSettings(quality, progressive, optimizeHuffman, chromaSubsampling, compressionLevel);
+    }
+
+    /**
+     * compute Huffman tables for each JPEG instead of using the standard ones, smaller output for a second pass over the data.
+     */
+    public EncoderSettings optimizeHuffman(boolean optimizeHuffman) {
+        return new EncoderSettings(quality, progressive, optimizeHuffman, chromaSubsampling, compressionLevel);
+    }
+
+    /**
+     * JPEG colour at half resolution (4:2:0) like the writer default, false keeps it at full resolution (4:4:4).
+     */
+    public EncoderSettings chromaSubsampling(boolean chromaSubsampling) {
+        return new EncoderSettings(quality, progressive, optimizeHuffman, chromaSubsampling, compressionLevel);
+    }
+
+    /**
+     * @param compressionLevel PNG deflate level in [0, 9], negative keeps the writer default.
+     *                         needs a writer that supports compression, the PNG writer of Java 8 does not.
+     */
+    public EncoderSettings compressionLevel(int compressionLevel) {
+        if (compressionLevel > 9) {
+            throw new IllegalArgumentException("compression level must be at most 9, got " + compressionLevel);
+        }
+        return new EncoderSettings(quality, progressive, optimizeHuffman, chromaSubsampling, compressionLevel);
+    }
+
+    public float getQuality() {
+        return quality;
+    }
+
+    public boolean isProgressive() {
+        return progressive;
+    }
+
+    public boolean isOptimizeHuffman() {
+        return optimizeHuffman;
+    }
+
+    public boolean isChromaSubsampling() {
+        return chromaSubsampling;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * every setting in a fixed order, equal for settings that encode alike.
+     */
+    public String cacheKey() {
+        return quality + "," + progressive + "," + optimizeHuffman + "," + chromaSubsampling + "," + compressionLevel;
+    }
+
+    @Override
+    public String toString() {
+        return "quality=" + quality + " progressive=" + progressive + " optimizeHuffman=" + optimizeHuffman
+                + " chromaSubsampling=" + chromaSubsampling + " compressionLevel=" + compressionLevel;
+    }
+}
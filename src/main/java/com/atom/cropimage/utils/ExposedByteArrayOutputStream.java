@@ -0,0 +1,50 @@
+package com.atom.cropimage.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * ByteArrayOutputStream that hands out its internal buffer instead of copying it like toByteArray() does.
+ * the views returned are only valid until the stream is written to or reset again.
+ *
+ * @author Atom
+ */
+public class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+    public ExposedByteArrayOutputStream() {
+        super();
+    }
+
+    public ExposedByteArrayOutputStream(int size) {
+        super(size);
+    }
+
+    /**
+     * a new stream over the written bytes, can be called again e.g. when a request is retried.
+     *
+     * @return
+     */
+    public synchronized InputStream toInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+
+    /**
+     * the size of the internal buffer, the number of bytes it can hold without growing.
+     *
+     * @return
+     */
+    public synchronized int capacity() {
+        return buf.length;
+    }
+
+    /**
+     * a read only view of the written bytes.
+     *
+     * @return
+     */
+    public synchronized ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count).asReadOnlyBuffer();
+    }
+}
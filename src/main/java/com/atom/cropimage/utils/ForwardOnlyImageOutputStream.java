@@ -0,0 +1,65 @@
+package com.atom.cropimage.utils;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * an image output stream that hands every byte straight to the wrapped stream instead of caching the whole output
+ * like MemoryCacheImageOutputStream does for writers that never flush it. only for writers that write front to back:
+ * seeking to any other position or reading back fails.
+ *
+ * @author Atom
+ */
+class ForwardOnlyImageOutputStream extends ImageOutputStreamImpl {
+
+    private final OutputStream out;
+
+    ForwardOnlyImageOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkClosed();
+        flushBits();
+        out.write(b);
+        streamPos++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        flushBits();
+        out.write(b, off, len);
+        streamPos += len;
+    }
+
+    @Override
+    public int read() throws IOException {
+        throw new IOException("forward only stream, can not read back");
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        throw new IOException("forward only stream, can not read back");
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        checkClosed();
+        if (pos != streamPos) {
+            throw new IOException("forward only stream at " + streamPos + ", can not seek to " + pos);
+        }
+        bitOffset = 0;
+    }
+
+    /**
+     * flushes but does not close the wrapped stream, like MemoryCacheImageOutputStream.
+     */
+    @Override
+    public void close() throws IOException {
+        super.close();
+        out.flush();
+    }
+}
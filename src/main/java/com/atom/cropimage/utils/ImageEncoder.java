@@ -0,0 +1,146 @@
+package com.atom.cropimage.utils;
+
+import com.atom.cropimage.utils.ScaleMetrics.Stage;
+import org.w3c.dom.NodeList;
+
+import javax.imageio.*;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * encode images with explicit {@link EncoderSettings}.
+ * looking up a writer goes through the service registry and the JPEG writer allocates native state,
+ * so every thread keeps one writer per format and resets it between images.
+ *
+ * @author Atom
+ */
+public class ImageEncoder {
+
+    private static final String JPEG_IMAGE_METADATA = "javax_imageio_jpeg_image_1.0";
+    /**
+     * writers that only write front to back, their output goes straight to the caller's stream.
+     * the others seek back (PNG chunk lengths, TIFF offsets) and write through a memory cache.
+     */
+    private static final Set<String> FORWARD_ONLY_FORMATS = new HashSet<>(Arrays.asList("jpg", "jpeg", "gif"));
+
+    private static final ThreadLocal<Map<String, ImageWriter>> writers = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * encode into a pooled buffer, give it back with {@link EncodeBufferPool#release} once uploaded.
+     *
+     * @param image
+     * @param formatName
+     * @param settings
+     * @return
+     * @throws IOException
+     */
+    public static ExposedByteArrayOutputStream encode(RenderedImage image, String formatName, EncoderSettings settings) throws IOException {
+        ExposedByteArrayOutputStream bos = EncodeBufferPool.acquire();
+        try {
+            write(image, formatName, settings, bos);
+        } catch (IOException | RuntimeException e) {
+            EncodeBufferPool.release(bos);
+            throw e;
+        }
+        return bos;
+    }
+
+    /**
+     * encode to a stream, the stream is flushed but not closed.
+     * jpeg and gif reach the stream while they are encoded, other formats as the writer flushes its cache.
+     *
+     * @param image
+     * @param formatName
+     * @param settings
+     * @param out
+     * @throws IOException
+     */
+    public static void write(RenderedImage image, String formatName, EncoderSettings settings, OutputStream out) throws IOException {
+        long start = ScaleMetrics.start(Stage.ENCODE);
+        boolean succeeded = false;
+        try {
+            writeImage(image, formatName, settings, out);
+            succeeded = true;
+        } finally {
+            ScaleMetrics.stop(Stage.ENCODE, start, succeeded);
+        }
+    }
+
+    private static void writeImage(RenderedImage image, String formatName, EncoderSettings settings, OutputStream out) throws IOException {
+        String format = formatName.toLowerCase(Locale.ROOT);
+        Map<String, ImageWriter> threadWriters = writers.get();
+        // taken out while in use, so a nested encode on this thread gets a writer of its own
+        ImageWriter writer = threadWriters.remove(format);
+        if (writer == null) {
+            writer = ImageFormats.writer(format);
+        }
+        boolean written = false;
+        try (ImageOutputStream ios = FORWARD_ONLY_FORMATS.contains(format) ? new ForwardOnlyImageOutputStream(out) : new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writeParam(writer, format, settings);
+            writer.write(null, new IIOImage(image, null, metadata(writer, image, param, settings)), param);
+            written = true;
+        } finally {
+            if (written) {
+                writer.reset();
+                threadWriters.put(format, writer);
+            } else {
+                writer.dispose();
+            }
+        }
+    }
+
+    private static ImageWriteParam writeParam(ImageWriter writer, String formatName, EncoderSettings settings) {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        float quality = settings.getQuality();
+        if ("png".equals(formatName) && settings.getCompressionLevel() >= 0) {
+            // the PNG writer takes the deflate level as quality, 1 being level 0
+            quality = 1f - settings.getCompressionLevel() / 9f;
+        }
+        if (quality >= 0 && param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            if (param.getCompressionType() == null) {
+                param.setCompressionType(param.getCompressionTypes()[0]);
+            }
+            param.setCompressionQuality(quality);
+        }
+        if (settings.isProgressive() && param.canWriteProgressive()) {
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        }
+        if (param instanceof JPEGImageWriteParam) {
+            ((JPEGImageWriteParam) param).setOptimizeHuffmanTables(settings.isOptimizeHuffman());
+        }
+        return param;
+    }
+
+    /**
+     * null, the writer default, unless JPEG chroma has to be kept at full resolution.
+     */
+    private static IIOMetadata metadata(ImageWriter writer, RenderedImage image, ImageWriteParam param, EncoderSettings settings) throws IOException {
+        if (settings.isChromaSubsampling() || !JPEG_IMAGE_METADATA.equals(writer.getOriginatingProvider().getNativeImageMetadataFormatName())) {
+            return null;
+        }
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+        IIOMetadataNode tree = (IIOMetadataNode) metadata.getAsTree(JPEG_IMAGE_METADATA);
+        NodeList components = tree.getElementsByTagName("componentSpec");
+        for (int i = 0; i < components.getLength(); i++) {
+            IIOMetadataNode component = (IIOMetadataNode) components.item(i);
+            component.setAttribute("HsamplingFactor", "1");
+            component.setAttribute("VsamplingFactor", "1");
+        }
+        metadata.setFromTree(JPEG_IMAGE_METADATA, tree);
+        return metadata;
+    }
+}
@@ -0,0 +1,199 @@
+package com.atom.cropimage.utils;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * image format detection and reader / writer lookup without a service registry scan per image.
+ * the format is sniffed from the first bytes of the stream, the reader and writer providers are looked up once
+ * per format, and every thread keeps one reader per provider, reset between images.
+ * streams of a signature not known here still go through ImageIO.getImageReaders.
+ *
+ * @author Atom
+ */
+public final class ImageFormats {
+
+    private static final int SIGNATURE_LENGTH = 12;
+
+    private static final Map<String, Optional<ImageReaderSpi>> readerSpis = new ConcurrentHashMap<>();
+    private static final Map<String, Optional<ImageWriterSpi>> writerSpis = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Map<ImageReaderSpi, ImageReader>> readers = ThreadLocal.withInitial(HashMap::new);
+
+    private ImageFormats() {
+    }
+
+    /**
+     * the format of the stream from its signature, the stream position is left unchanged.
+     *
+     * @param iis
+     * @return jpeg, png, gif, bmp, tiff or webp, null for any other signature
+     * @throws IOException
+     */
+    public static String detect(ImageInputStream iis) throws IOException {
+        byte[] header = new byte[SIGNATURE_LENGTH];
+        int length;
+        iis.mark();
+        try {
+            length = 0;
+            int n;
+            while (length < header.length && (n = iis.read(header, length, header.length - length)) > 0) {
+                length += n;
+            }
+        } finally {
+            iis.reset();
+        }
+        return detect(header, length);
+    }
+
+    static String detect(byte[] header, int length) {
+        if (startsWith(header, length, 0xFF, 0xD8, 0xFF)) {
+            return "jpeg";
+        }
+        if (startsWith(header, length, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) {
+            return "png";
+        }
+        if (startsWith(header, length, 'G', 'I', 'F', '8')) {
+            return "gif";
+        }
+        if (startsWith(header, length, 'B', 'M')) {
+            return "bmp";
+        }
+        if (startsWith(header, length, 'I', 'I', 0x2A, 0x00) || startsWith(header, length, 'M', 'M', 0x00, 0x2A)) {
+            return "tiff";
+        }
+        if (startsWith(header, length, 'R', 'I', 'F', 'F') && length >= 12
+                && header[8] == 'W' && header[9] == 'E' && header[10] == 'B' && header[11] == 'P') {
+            return "webp";
+        }
+        return null;
+    }
+
+    /**
+     * the name the reader of the stream gives its format, e.g. JPEG, png or gif, like ImageReader.getFormatName.
+     *
+     * @param iis
+     * @return null when no reader supports the stream
+     * @throws IOException
+     */
+    public static String formatName(ImageInputStream iis) throws IOException {
+        String format = detect(iis);
+        ImageReaderSpi spi = format == null ? null : readerSpi(format);
+        if (spi != null) {
+            return spi.getFormatNames()[0];
+        }
+        Iterator<ImageReader> imageReaders = ImageIO.getImageReaders(iis);
+        if (!imageReaders.hasNext()) {
+            return null;
+        }
+        ImageReader reader = imageReaders.next();
+        String formatName = reader.getFormatName();
+        reader.dispose();
+        return formatName;
+    }
+
+    /**
+     * a reader for the stream, its input is not set yet. give it back with {@link #release(ImageReader)}.
+     *
+     * @param iis
+     * @return null when no reader supports the stream
+     * @throws IOException
+     */
+    public static ImageReader reader(ImageInputStream iis) throws IOException {
+        String format = detect(iis);
+        ImageReaderSpi spi = format == null ? null : readerSpi(format);
+        if (spi != null) {
+            // taken out while in use, so a nested decode on this thread gets a reader of its own
+            ImageReader reader = readers.get().remove(spi);
+            return reader != null ? reader : spi.createReaderInstance();
+        }
+        Iterator<ImageReader> imageReaders = ImageIO.getImageReaders(iis);
+        return imageReaders.hasNext() ? imageReaders.next() : null;
+    }
+
+    /**
+     * reset the reader and keep it for the next image of its format on this thread.
+     *
+     * @param reader
+     */
+    public static void release(ImageReader reader) {
+        ImageReaderSpi spi = reader.getOriginatingProvider();
+        if (spi == null) {
+            reader.dispose();
+            return;
+        }
+        reader.reset();
+        if (readers.get().putIfAbsent(spi, reader) != null) {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * a new writer for the format.
+     *
+     * @param formatName
+     * @return
+     * @throws IOException when no writer supports the format
+     */
+    public static ImageWriter writer(String formatName) throws IOException {
+        ImageWriterSpi spi = writerSpi(formatName);
+        if (spi == null) {
+            throw new IOException("no image writer for format " + formatName);
+        }
+        return spi.createWriterInstance();
+    }
+
+    /**
+     * the MIME type the writer of the format produces, e.g. image/jpeg for jpg.
+     *
+     * @param formatName
+     * @return null when no writer supports the format
+     */
+    public static String mimeType(String formatName) {
+        ImageWriterSpi spi = writerSpi(formatName);
+        String[] mimeTypes = spi == null ? null : spi.getMIMETypes();
+        return mimeTypes == null || mimeTypes.length == 0 ? null : mimeTypes[0];
+    }
+
+    private static ImageWriterSpi writerSpi(String formatName) {
+        return writerSpis.computeIfAbsent(formatName.toLowerCase(Locale.ROOT), format -> {
+            Iterator<ImageWriter> imageWriters = ImageIO.getImageWritersByFormatName(format);
+            if (!imageWriters.hasNext()) {
+                return Optional.empty();
+            }
+            ImageWriter writer = imageWriters.next();
+            writer.dispose();
+            return Optional.ofNullable(writer.getOriginatingProvider());
+        }).orElse(null);
+    }
+
+    private static ImageReaderSpi readerSpi(String format) {
+        return readerSpis.computeIfAbsent(format, f -> {
+            Iterator<ImageReader> imageReaders = ImageIO.getImageReadersByFormatName(f);
+            if (!imageReaders.hasNext()) {
+                return Optional.empty();
+            }
+            ImageReader reader = imageReaders.next();
+            reader.dispose();
+            return Optional.ofNullable(reader.getOriginatingProvider());
+        }).orElse(null);
+    }
+
+    private static boolean startsWith(byte[] header, int length, int... signature) {
+        if (length < signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if ((header[i] & 0xFF) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,19 +1,35 @@
 package com.atom.cropimage.utils;
 
 
+import com.atom.cropimage.resample.ImagePixels;
+import com.atom.cropimage.resample.PixelBufferPool;
+import com.atom.cropimage.resample.ResampleFilter;
+import com.atom.cropimage.utils.ScaleMetrics.Stage;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.extern.slf4j.Slf4j;
+import org.w3c.dom.Node;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageReader;
-import javax.imageio.ImageWriter;
+import javax.imageio.*;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.RasterFormatException;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
 import java.io.*;
-import java.util.Arrays;
-import java.util.Iterator;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.ToDoubleBiFunction;
 
 
 /**
@@ -22,6 +38,100 @@ import java.util.Iterator;
 @Slf4j
 public class ImageScaleUtil {
 
+    /**
+     * filter used by the scale methods, BOX is area averaging like the old SCALE_SMOOTH path.
+     */
+    private static volatile ResampleFilter resampleFilter = ResampleFilter.BOX;
+
+    public static ResampleFilter getResampleFilter() {
+        return resampleFilter;
+    }
+
+    public static void setResampleFilter(ResampleFilter filter) {
+        resampleFilter = Objects.requireNonNull(filter);
+    }
+
+    /**
+     * bytes held per decoded pixel until it is scaled: the decoded raster (up to 4 bytes per pixel)
+     * plus the packed int copy the resampler works on.
+     */
+    private static final int DECODE_BYTES_PER_PIXEL = 8;
+
+    /**
+     * bytes of decoded rasters alive at the same time across all threads, a decode waits until its share is free.
+     * half the heap by default, so a few huge images can not run the workers out of memory.
+     * the idle buffers of the pixel and encode buffer pools are not part of it, they are capped at
+     * another eighth and sixteenth of the heap.
+     */
+    private static volatile ByteBudget decodeBudget = new ByteBudget(Math.min(Runtime.getRuntime().maxMemory() / 2, Integer.MAX_VALUE));
+
+    public static void setDecodeBudget(long bytes) {
+        decodeBudget = new ByteBudget(bytes);
+    }
+
+    public static ByteBudget getDecodeBudget() {
+        return decodeBudget;
+    }
+
+    /**
+     * settings of the encode methods that do not take their own.
+     */
+    private static volatile EncoderSettings encoderSettings = EncoderSettings.DEFAULT;
+
+    public static EncoderSettings getEncoderSettings() {
+        return encoderSettings;
+    }
+
+    public static void setEncoderSettings(EncoderSettings settings) {
+        encoderSettings = Objects.requireNonNull(settings);
+    }
+
+    private static final String GIF_IMAGE_METADATA = "javax_imageio_gif_image_1.0";
+
+    /**
+     * frames of one cutImage processed ahead of the frame being written.
+     */
+    private static final int FRAME_WINDOW = 2 * Runtime.getRuntime().availableProcessors();
+
+    private static final ExecutorService frameExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+            new ThreadFactoryBuilder().setNameFormat("image-frame-%d").setDaemon(true).build());
+
+    /**
+     * resize image with the default resample filter.
+     *
+     * @param sourceImage
+     * @param width
+     * @param height
+     * @return
+     */
+    public static BufferedImage resize(BufferedImage sourceImage, int width, int height) {
+        return resize(sourceImage, width, height, resampleFilter);
+    }
+
+    /**
+     * resize image directly on its pixel array, the result is TYPE_INT_RGB or TYPE_INT_ARGB.
+     *
+     * @param sourceImage
+     * @param width
+     * @param height
+     * @param filter
+     * @return
+     */
+    public static BufferedImage resize(BufferedImage sourceImage, int width, int height, ResampleFilter filter) {
+        long start = ScaleMetrics.start(Stage.RESAMPLE);
+        boolean succeeded = false;
+        try {
+            ImagePixels source = ImagePixels.of(sourceImage);
+            BufferedImage image = filter.resampler().resample(source, width, height).toBufferedImage();
+            // a no-op unless the source had to be converted to packed ints
+            source.release();
+            succeeded = true;
+            return image;
+        } finally {
+            ScaleMetrics.stop(Stage.RESAMPLE, start, succeeded);
+        }
+    }
+
     /**
      * get image format
      *
@@ -30,14 +140,9 @@ public class ImageScaleUtil {
      * @throws IOException
      */
     public static String getImageFormatName(File file) throws IOException {
-        String formatName = null;
-        ImageInputStream iis = ImageIO.createImageInputStream(file);
-        Iterator<ImageReader> imageReader = ImageIO.getImageReaders(iis);
-        if (imageReader.hasNext()) {
-            ImageReader reader = imageReader.next();
-            formatName = reader.getFormatName();
+        try (ImageInputStream iis = new FileImageInputStream(file)) {
+            return ImageFormats.formatName(iis);
         }
-        return formatName;
     }
 
 
@@ -49,30 +154,189 @@ public class ImageScaleUtil {
      * @throws IOException
      */
     public static BufferedImage[] readerImage(File file) throws IOException {
-        BufferedImage sourceImage = ImageIO.read(file);
         BufferedImage[] images = null;
-        ImageInputStream iis = ImageIO.createImageInputStream(file);
-        Iterator<ImageReader> imageReaders = ImageIO.getImageReaders(iis);
-        if (imageReaders.hasNext()) {
-            ImageReader reader = imageReaders.next();
-            reader.setInput(iis);
-            int imageNumber = reader.getNumImages(true);
-            images = new BufferedImage[imageNumber];
-            for (int i = 0; i < imageNumber; i++) {
-                BufferedImage image = reader.read(i);
-                if (sourceImage.getWidth() > image.getWidth() || sourceImage.getHeight() > image.getHeight()) {
-                    image = zoom(image, sourceImage.getWidth(), sourceImage.getHeight());
+        ImageInputStream iis = new FileImageInputStream(file);
+        ImageReader reader = ImageFormats.reader(iis);
+        if (reader == null) {
+            iis.close();
+        } else {
+            try {
+                reader.setInput(iis);
+                int sourceWidth = reader.getWidth(0);
+                int sourceHeight = reader.getHeight(0);
+                int imageNumber = reader.getNumImages(true);
+                images = new BufferedImage[imageNumber];
+                for (int i = 0; i < imageNumber; i++) {
+                    images[i] = readFrame(reader, i, null, sourceWidth, sourceHeight);
                 }
-                images[i] = image;
+            } finally {
+                ImageFormats.release(reader);
+                iis.close();
             }
-            reader.dispose();
+        }
+        return images;
+    }
+
+    /**
+     * read only the given region of every frame, the rest of the source is never decoded.
+     * frames smaller than the first one are zoomed to its size first, like {@link #readerImage(File)} does,
+     * and then cropped into a compact copy.
+     *
+     * @param file
+     * @param x
+     * @param y
+     * @param width
+     * @param height
+     * @return
+     * @throws IOException
+     */
+    public static BufferedImage[] readerImageRegion(File file, int x, int y, int width, int height) throws IOException {
+        BufferedImage[] images = null;
+        ImageInputStream iis = new FileImageInputStream(file);
+        ImageReader reader = ImageFormats.reader(iis);
+        if (reader == null) {
             iis.close();
+        } else {
+            try {
+                reader.setInput(iis);
+                int sourceWidth = reader.getWidth(0);
+                int sourceHeight = reader.getHeight(0);
+                Rectangle region = checkRegion(x, y, width, height, sourceWidth, sourceHeight);
+                int imageNumber = reader.getNumImages(true);
+                images = new BufferedImage[imageNumber];
+                for (int i = 0; i < imageNumber; i++) {
+                    images[i] = readFrame(reader, i, region, sourceWidth, sourceHeight);
+                }
+            } finally {
+                ImageFormats.release(reader);
+                iis.close();
+            }
         }
         return images;
     }
 
     /**
-     * cut image use specific size
+     * decode one frame, zoomed to the size of the first frame when it is smaller, like {@link #readerImage(File)} does.
+     * with a region only that part is decoded whenever the frame covers the first one, otherwise it is cropped into a compact copy.
+     */
+    private static BufferedImage readFrame(ImageReader reader, int imageIndex, Rectangle region, int sourceWidth, int sourceHeight) throws IOException {
+        boolean covers = reader.getWidth(imageIndex) >= sourceWidth && reader.getHeight(imageIndex) >= sourceHeight;
+        if (covers) {
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (region != null) {
+                param.setSourceRegion(region);
+            }
+            return reader.read(imageIndex, param);
+        }
+        return zoomFrame(reader.read(imageIndex), region, sourceWidth, sourceHeight);
+    }
+
+    private static BufferedImage zoomFrame(BufferedImage source, Rectangle region, int sourceWidth, int sourceHeight) {
+        BufferedImage image = zoom(source, sourceWidth, sourceHeight);
+        if (region == null) {
+            return image;
+        }
+        BufferedImage frame = compactCopy(image.getSubimage(region.x, region.y, region.width, region.height));
+        recycle(image);
+        return frame;
+    }
+
+    /**
+     * the frame with its region decoded on the calling thread, in stream order.
+     * a frame that has to be zoomed first is finished on the frame executor and mapped back to its own palette there,
+     * so the writer does not have to quantize it.
+     */
+    private static Future<IIOImage> readFrameAsync(ImageReader reader, int imageIndex, Rectangle region, int sourceWidth, int sourceHeight) throws IOException {
+        IIOMetadata metadata = reader.getImageMetadata(imageIndex);
+        if (reader.getWidth(imageIndex) >= sourceWidth && reader.getHeight(imageIndex) >= sourceHeight) {
+            return CompletableFuture.completedFuture(new IIOImage(readFrame(reader, imageIndex, region, sourceWidth, sourceHeight), null, metadata));
+        }
+        BufferedImage source = reader.read(imageIndex);
+        return frameExecutor.submit(() -> {
+            BufferedImage frame = zoomFrame(source, region, sourceWidth, sourceHeight);
+            if (source.getColorModel() instanceof IndexColorModel && !(frame.getColorModel() instanceof IndexColorModel)) {
+                frame = toPalette(frame, (IndexColorModel) source.getColorModel());
+            }
+            return new IIOImage(frame, null, metadata);
+        });
+    }
+
+    /**
+     * map every pixel to the closest entry of the palette, transparent pixels to its transparent entry.
+     */
+    private static BufferedImage toPalette(BufferedImage image, IndexColorModel palette) {
+        BufferedImage indexed = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_INDEXED, palette);
+        WritableRaster raster = indexed.getRaster();
+        int[] row = new int[image.getWidth()];
+        Object pixel = null;
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, row.length, 1, row, 0, row.length);
+            for (int x = 0; x < row.length; x++) {
+                pixel = palette.getDataElements(row[x], pixel);
+                raster.setDataElements(x, y, pixel);
+            }
+        }
+        return indexed;
+    }
+
+    /**
+     * write the next frame in order, waiting for it if it is still being processed.
+     * GIF frames keep their delay, disposal and transparency, their descriptor is moved to the cropped frame.
+     */
+    private static void writeFrame(ImageWriter writer, boolean sequence, Future<IIOImage> pending) throws IOException, InterruptedException {
+        IIOImage frame;
+        try {
+            frame = pending.get();
+        } catch (ExecutionException e) {
+            throw new IOException("frame processing fail", e.getCause());
+        }
+        RenderedImage image = frame.getRenderedImage();
+        IIOMetadata metadata = null;
+        IIOMetadata sourceMetadata = frame.getMetadata();
+        if (sourceMetadata != null && GIF_IMAGE_METADATA.equals(sourceMetadata.getNativeMetadataFormatName())
+                && GIF_IMAGE_METADATA.equals(writer.getOriginatingProvider().getNativeImageMetadataFormatName())) {
+            IIOMetadataNode tree = (IIOMetadataNode) sourceMetadata.getAsTree(GIF_IMAGE_METADATA);
+            IIOMetadataNode descriptor = (IIOMetadataNode) tree.getElementsByTagName("ImageDescriptor").item(0);
+            descriptor.setAttribute("imageLeftPosition", "0");
+            descriptor.setAttribute("imageTopPosition", "0");
+            descriptor.setAttribute("imageWidth", String.valueOf(image.getWidth()));
+            descriptor.setAttribute("imageHeight", String.valueOf(image.getHeight()));
+            // the frame carries its own palette, a table left over from the source may not match it
+            Node localColorTable = tree.getElementsByTagName("LocalColorTable").item(0);
+            if (localColorTable != null) {
+                tree.removeChild(localColorTable);
+            }
+            // the specifier of the frame itself, one made from its image type would carry a stock palette
+            metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), null);
+            metadata.mergeTree(GIF_IMAGE_METADATA, tree);
+        }
+        if (sequence) {
+            writer.writeToSequence(new IIOImage(image, null, metadata), null);
+        } else {
+            writer.write(null, new IIOImage(image, null, metadata), null);
+        }
+    }
+
+    private static Rectangle checkRegion(int x, int y, int width, int height, int sourceWidth, int sourceHeight) {
+        if (x < 0 || y < 0 || width <= 0 || height <= 0 || x + width > sourceWidth || y + height > sourceHeight) {
+            throw new RasterFormatException("region (" + x + "," + y + " " + width + "x" + height
+                    + ") is outside of the " + sourceWidth + "x" + sourceHeight + " image");
+        }
+        return new Rectangle(x, y, width, height);
+    }
+
+    /**
+     * copy of an image, typically a sub image, on its own raster of exactly its size.
+     */
+    private static BufferedImage compactCopy(BufferedImage image) {
+        ColorModel colorModel = image.getColorModel();
+        WritableRaster raster = colorModel.createCompatibleWritableRaster(image.getWidth(), image.getHeight());
+        image.copyData(raster);
+        return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * cut image use specific size, each result is a compact copy so it does not keep the source raster alive.
      *
      * @param images
      * @param x
@@ -89,7 +353,7 @@ public class ImageScaleUtil {
         images = new BufferedImage[images.length];
         for (int i = 0; i < oldImages.length; i++) {
             BufferedImage image = oldImages[i];
-            images[i] = image.getSubimage(x, y, width, height);
+            images[i] = compactCopy(image.getSubimage(x, y, width, height));
         }
         return images;
     }
@@ -103,39 +367,44 @@ public class ImageScaleUtil {
      * @throws Exception
      */
     public static void writerImage(BufferedImage[] images, String formatName, File file) throws Exception {
-        Iterator<ImageWriter> imageWriters = ImageIO.getImageWritersByFormatName(formatName);
-        if (imageWriters.hasNext()) {
-            ImageWriter writer = imageWriters.next();
-            String fileName = file.getName();
-            int index = fileName.lastIndexOf(".");
-            if (index > 0) {
-                fileName = fileName.substring(0, index + 1) + formatName;
-            }
-            String pathPrefix = getFilePrefixPath(file.getPath());
-            File outFile = new File(pathPrefix + fileName);
-            ImageOutputStream ios = ImageIO.createImageOutputStream(outFile);
-            writer.setOutput(ios);
+        ImageWriter writer = ImageFormats.writer(formatName);
+        ImageOutputStream ios = ImageIO.createImageOutputStream(outputFile(file, formatName));
+        writer.setOutput(ios);
 
-            if (writer.canWriteSequence()) {
-                writer.prepareWriteSequence(null);
-                for (BufferedImage childImage : images) {
-                    IIOImage image = new IIOImage(childImage, null, null);
-                    writer.writeToSequence(image, null);
-                }
-                writer.endWriteSequence();
-            } else {
-                for (BufferedImage image : images) {
-                    writer.write(image);
-                }
+        if (writer.canWriteSequence()) {
+            writer.prepareWriteSequence(null);
+            for (BufferedImage childImage : images) {
+                IIOImage image = new IIOImage(childImage, null, null);
+                writer.writeToSequence(image, null);
             }
+            writer.endWriteSequence();
+        } else {
+            for (BufferedImage image : images) {
+                writer.write(image);
+            }
+        }
 
-            writer.dispose();
-            ios.close();
+        writer.dispose();
+        ios.close();
+    }
+
+    /**
+     * the file written by {@link #writerImage}, its suffix replaced by the format name.
+     */
+    private static File outputFile(File file, String formatName) throws Exception {
+        String fileName = file.getName();
+        int index = fileName.lastIndexOf(".");
+        if (index > 0) {
+            fileName = fileName.substring(0, index + 1) + formatName;
         }
+        return new File(getFilePrefixPath(file.getPath()) + fileName);
     }
 
     /**
-     * cut image.
+     * cut image, only the region of the source is decoded.
+     * frames are streamed: they are decoded in order, frames that need zooming are finished in parallel
+     * and written back in order, at most {@link #FRAME_WINDOW} frames ahead of the writer,
+     * so an animation takes the memory of a few frames whatever its length.
      *
      * @param sourceFile
      * @param destFile
@@ -146,11 +415,69 @@ public class ImageScaleUtil {
      * @throws Exception
      */
     public static void cutImage(File sourceFile, File destFile, int x, int y, int width, int height) throws Exception {
-        BufferedImage[] images = readerImage(sourceFile);
-        images = processImage(images, x, y, width, height);
-        String formatName = getImageFormatName(sourceFile);
-        destFile = new File(getPathWithoutSuffix(destFile.getPath()) + formatName);
-        writerImage(images, formatName, destFile);
+        ImageInputStream iis = new FileImageInputStream(sourceFile);
+        ImageReader reader = null;
+        ImageWriter writer = null;
+        ImageOutputStream ios = null;
+        Deque<Future<IIOImage>> pending = new ArrayDeque<>();
+        try {
+            reader = ImageFormats.reader(iis);
+            if (reader == null) {
+                throw new IOException("unsupported image format");
+            }
+            reader.setInput(iis, true);
+            String formatName = reader.getFormatName();
+            writer = ImageFormats.writer(formatName);
+            int sourceWidth = reader.getWidth(0);
+            int sourceHeight = reader.getHeight(0);
+            Rectangle region = checkRegion(x, y, width, height, sourceWidth, sourceHeight);
+
+            destFile = new File(getPathWithoutSuffix(destFile.getPath()) + formatName);
+            ios = ImageIO.createImageOutputStream(outputFile(destFile, formatName));
+            writer.setOutput(ios);
+            boolean sequence = writer.canWriteSequence();
+            if (sequence) {
+                writer.prepareWriteSequence(null);
+            }
+            // without a full scan the reader may not know the frame count, then read until it runs out
+            int imageNumber = reader.getNumImages(false);
+            for (int i = 0; imageNumber < 0 || i < imageNumber; i++) {
+                if (imageNumber < 0 && !hasImage(reader, i)) {
+                    break;
+                }
+                pending.addLast(readFrameAsync(reader, i, region, sourceWidth, sourceHeight));
+                if (pending.size() >= FRAME_WINDOW) {
+                    writeFrame(writer, sequence, pending.removeFirst());
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeFrame(writer, sequence, pending.removeFirst());
+            }
+            if (sequence) {
+                writer.endWriteSequence();
+            }
+        } finally {
+            pending.forEach(frame -> frame.cancel(true));
+            if (writer != null) {
+                writer.dispose();
+            }
+            if (ios != null) {
+                ios.close();
+            }
+            if (reader != null) {
+                ImageFormats.release(reader);
+            }
+            iis.close();
+        }
+    }
+
+    private static boolean hasImage(ImageReader reader, int imageIndex) throws IOException {
+        try {
+            reader.getWidth(imageIndex);
+            return true;
+        } catch (IndexOutOfBoundsException e) {
+            return false;
+        }
     }
 
 
@@ -185,12 +512,7 @@ public class ImageScaleUtil {
      * @return
      */
     private static BufferedImage zoom(BufferedImage sourceImage, int width, int height) {
-        BufferedImage zoomImage = new BufferedImage(width, height, sourceImage.getType());
-        Image image = sourceImage.getScaledInstance(width, height, Image.SCALE_SMOOTH);
-        Graphics gc = zoomImage.getGraphics();
-        gc.setColor(Color.WHITE);
-        gc.drawImage(image, 0, 0, null);
-        return zoomImage;
+        return resize(sourceImage, width, height);
     }
 
     /**
@@ -256,6 +578,384 @@ public class ImageScaleUtil {
         return file.getName();
     }
 
+    /**
+     * decode the first image of the stream already scaled.
+     * streams are wrapped in a MemoryCacheImageInputStream, ImageIO.createImageInputStream would spool them to a temp file.
+     *
+     * @param iis   closed by this method
+     * @param scale
+     * @return
+     * @throws IOException
+     */
+    public static BufferedImage readScaled(ImageInputStream iis, float scale) throws IOException {
+        try (DecodedImage decoded = readSubsampled(iis, scale)) {
+            BufferedImage scaled = scale(decoded, scale);
+            recycleDecoded(decoded, scaled);
+            return scaled;
+        }
+    }
+
+    /**
+     * decode the first image of the stream for a later {@link #scale(DecodedImage, float)}.
+     * when the scale is 0.5 or less the reader skips source pixels via subsampling,
+     * so the full resolution raster is never materialised.
+     * the decode is admitted against the decode budget, close the result once it has been scaled.
+     *
+     * @param iis   closed by this method
+     * @param scale
+     * @return
+     * @throws IOException
+     */
+    public static DecodedImage readSubsampled(ImageInputStream iis, float scale) throws IOException {
+        if (scale <= 0) {
+            throw new IllegalArgumentException("scale must be positive, got " + scale);
+        }
+        return readSubsampled(iis, (sourceWidth, sourceHeight) -> scale);
+    }
+
+    /**
+     * decode the first image of the stream, subsampled for the scale the source size calls for.
+     *
+     * @param iis          closed by this method
+     * @param scaleForSize the largest scale that will be taken from the decoded image, given the source width and height
+     * @return
+     * @throws IOException
+     */
+    public static DecodedImage readSubsampled(ImageInputStream iis, ToDoubleBiFunction<Integer, Integer> scaleForSize) throws IOException {
+        return readSubsampled(iis, null, scaleForSize);
+    }
+
+    /**
+     * decode only a region of the first image of the stream, subsampled for the scale the region size calls for.
+     * the rest of the source is never decoded, the result reports the region size as its source size.
+     *
+     * @param iis          closed by this method
+     * @param region       null for the whole image
+     * @param scaleForSize the largest scale that will be taken from the decoded image, given the region width and height
+     * @return
+     * @throws IOException
+     * @throws RasterFormatException when the region is not inside the image
+     */
+    public static DecodedImage readSubsampled(ImageInputStream iis, Rectangle region, ToDoubleBiFunction<Integer, Integer> scaleForSize) throws IOException {
+        long start = ScaleMetrics.start(Stage.DECODE);
+        boolean succeeded = false;
+        try {
+            DecodedImage decoded = decodeSubsampled(iis, region, scaleForSize);
+            succeeded = true;
+            return decoded;
+        } finally {
+            ScaleMetrics.stop(Stage.DECODE, start, succeeded);
+        }
+    }
+
+    private static DecodedImage decodeSubsampled(ImageInputStream iis, Rectangle region, ToDoubleBiFunction<Integer, Integer> scaleForSize) throws IOException {
+        if (iis == null) {
+            throw new IOException("can not create image input stream");
+        }
+        try {
+            ImageReader reader = ImageFormats.reader(iis);
+            if (reader == null) {
+                throw new IOException("unsupported image format");
+            }
+            try {
+                reader.setInput(iis, true, true);
+                int sourceWidth = reader.getWidth(0);
+                int sourceHeight = reader.getHeight(0);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (region != null) {
+                    param.setSourceRegion(checkRegion(region.x, region.y, region.width, region.height, sourceWidth, sourceHeight));
+                    sourceWidth = region.width;
+                    sourceHeight = region.height;
+                }
+                int step = subsamplingStep((float) scaleForSize.applyAsDouble(sourceWidth, sourceHeight));
+                if (step > 1) {
+                    param.setSourceSubsampling(step, step, 0, 0);
+                }
+                int width = (sourceWidth + step - 1) / step;
+                int height = (sourceHeight + step - 1) / step;
+                ByteBudget budget = decodeBudget;
+                int reserved = admitDecode(budget, (long) width * height * DECODE_BYTES_PER_PIXEL, sourceWidth, sourceHeight);
+                try {
+                    BufferedImage destination = pooledDestination(reader, width, height);
+                    if (destination != null) {
+                        param.setDestination(destination);
+                    }
+                    return new DecodedImage(reader.read(0, param), sourceWidth, sourceHeight, step, budget, reserved);
+                } catch (IOException | RuntimeException | Error e) {
+                    budget.release(reserved);
+                    throw e;
+                }
+            } finally {
+                ImageFormats.release(reader);
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    /**
+     * bring a decoded image to scale x its source size, only the part the subsampling did not do is resampled.
+     *
+     * @param decoded
+     * @param scale
+     * @return
+     */
+    public static BufferedImage scale(DecodedImage decoded, float scale) {
+        int width = Math.max(1, (int) (decoded.getSourceWidth() * scale));
+        int height = Math.max(1, (int) (decoded.getSourceHeight() * scale));
+        return scale(decoded, width, height);
+    }
+
+    /**
+     * bring a decoded image to width x height, only the part the subsampling did not do is resampled.
+     *
+     * @param decoded
+     * @param width
+     * @param height
+     * @return
+     */
+    public static BufferedImage scale(DecodedImage decoded, int width, int height) {
+        BufferedImage image = decoded.getImage();
+        int extraWidth = image.getWidth() - width;
+        int extraHeight = image.getHeight() - height;
+        if (extraWidth == 0 && extraHeight == 0) {
+            return image;
+        }
+        if (decoded.getSubsampling() > 1 && extraWidth >= 0 && extraWidth <= 1 && extraHeight >= 0 && extraHeight <= 1) {
+            // odd source size rounded up by the subsampling, drop the last column / row instead of resampling
+            return image.getSubimage(0, 0, width, height);
+        }
+        return resize(image, width, height);
+    }
+
+    /**
+     * encode image into a buffer that can be uploaded without another copy.
+     *
+     * @param image
+     * @param formatName
+     * @return
+     * @throws IOException
+     */
+    public static ExposedByteArrayOutputStream encode(BufferedImage image, String formatName) throws IOException {
+        return encode(image, formatName, -1f);
+    }
+
+    /**
+     * encode image with an explicit compression quality.
+     *
+     * @param image
+     * @param formatName
+     * @param quality    in [0, 1], negative or unsupported by the format keeps the writer default
+     * @return
+     * @throws IOException
+     */
+    public static ExposedByteArrayOutputStream encode(BufferedImage image, String formatName, float quality) throws IOException {
+        return encode(image, formatName, quality >= 0 ? encoderSettings.quality(quality) : encoderSettings);
+    }
+
+    /**
+     * encode image with the given settings, alpha is flattened onto white for formats without it.
+     *
+     * @param image
+     * @param formatName
+     * @param settings
+     * @return
+     * @throws IOException
+     */
+    public static ExposedByteArrayOutputStream encode(BufferedImage image, String formatName, EncoderSettings settings) throws IOException {
+        if (image.getColorModel().hasAlpha() && isOpaqueFormat(formatName)) {
+            image = flatten(image);
+        }
+        return ImageEncoder.encode(image, formatName, settings);
+    }
+
+    /**
+     * decode once and produce every rendition from it. the decode is subsampled for the largest rendition,
+     * then the renditions are produced from the largest to the smallest, each one downscaled from the previous.
+     *
+     * @param srcImageFileInputStream
+     * @param sourceKey
+     * @param specs
+     * @return the encoded renditions, largest first
+     * @throws IOException
+     */
+    public static List<Rendition> renderAll(InputStream srcImageFileInputStream, String sourceKey, List<RenditionSpec> specs) throws IOException {
+        try (DecodedImage decoded = readSubsampled(new MemoryCacheImageInputStream(srcImageFileInputStream), (sourceWidth, sourceHeight) -> {
+            double maxScale = 0;
+            for (RenditionSpec spec : specs) {
+                int[] size = spec.targetSize(sourceWidth, sourceHeight);
+                maxScale = Math.max(maxScale, Math.max((double) size[0] / sourceWidth, (double) size[1] / sourceHeight));
+            }
+            return maxScale;
+        })) {
+            int sourceWidth = decoded.getSourceWidth();
+            int sourceHeight = decoded.getSourceHeight();
+            List<RenditionSpec> largestFirst = new ArrayList<>(specs);
+            largestFirst.sort(Comparator.comparingLong((RenditionSpec spec) -> {
+                int[] size = spec.targetSize(sourceWidth, sourceHeight);
+                return (long) size[0] * size[1];
+            }).reversed());
+
+            List<Rendition> renditions = new ArrayList<>(largestFirst.size());
+            try {
+                BufferedImage previous = null;
+                for (RenditionSpec spec : largestFirst) {
+                    int[] size = spec.targetSize(sourceWidth, sourceHeight);
+                    BufferedImage image;
+                    if (previous == null) {
+                        image = scale(decoded, size[0], size[1]);
+                        recycleDecoded(decoded, image);
+                    } else if (previous.getWidth() == size[0] && previous.getHeight() == size[1]) {
+                        image = previous;
+                    } else {
+                        image = resize(previous, size[0], size[1]);
+                    }
+                    ExposedByteArrayOutputStream encoded = encode(image, spec.formatName(sourceKey), encoderSettings(spec));
+                    renditions.add(new Rendition(spec, spec.destinationKey(sourceKey), size[0], size[1], encoded));
+                    if (previous != null && previous != image) {
+                        recycle(previous);
+                    }
+                    previous = image;
+                }
+                if (previous != null) {
+                    recycle(previous);
+                }
+            } catch (IOException | RuntimeException e) {
+                // the renditions encoded so far are never returned, their buffers go back to the pool
+                for (Rendition rendition : renditions) {
+                    EncodeBufferPool.release(rendition.getEncoded());
+                }
+                throw e;
+            }
+            return renditions;
+        }
+    }
+
+    /**
+     * crop and scale the first image of the stream for one rendition, only the crop region is decoded,
+     * subsampled for the rendition size. write the result with {@link #writeRendition}.
+     *
+     * @param srcImageFileInputStream
+     * @param crop                    null for the whole image
+     * @param spec                    its target size is taken from the crop size
+     * @return the scaled image, recycle it once written
+     * @throws IOException
+     * @throws RasterFormatException when the crop is not inside the image
+     */
+    public static BufferedImage renderScaled(InputStream srcImageFileInputStream, Rectangle crop, RenditionSpec spec) throws IOException {
+        try (DecodedImage decoded = readSubsampled(new MemoryCacheImageInputStream(srcImageFileInputStream), crop, (sourceWidth, sourceHeight) -> {
+            int[] size = spec.targetSize(sourceWidth, sourceHeight);
+            return Math.max((double) size[0] / sourceWidth, (double) size[1] / sourceHeight);
+        })) {
+            int[] size = spec.targetSize(decoded.getSourceWidth(), decoded.getSourceHeight());
+            BufferedImage scaled = scale(decoded, size[0], size[1]);
+            recycleDecoded(decoded, scaled);
+            return scaled;
+        }
+    }
+
+    /**
+     * encode a rendition straight to a stream in its format and with its encoder settings, like {@link #renderAll} does.
+     *
+     * @param image
+     * @param sourceKey for the format when the rendition keeps the source format
+     * @param spec
+     * @param out       flushed but not closed
+     * @throws IOException
+     */
+    public static void writeRendition(BufferedImage image, String sourceKey, RenditionSpec spec, OutputStream out) throws IOException {
+        String formatName = spec.formatName(sourceKey);
+        if (image.getColorModel().hasAlpha() && isOpaqueFormat(formatName)) {
+            image = flatten(image);
+        }
+        ImageEncoder.write(image, formatName, encoderSettings(spec), out);
+    }
+
+    /**
+     * give the pixel buffer of a decoded or resized image back to the pool, the image must not be used afterwards.
+     *
+     * @param image
+     */
+    public static void recycle(BufferedImage image) {
+        PixelBufferPool.recycle(image);
+    }
+
+    /**
+     * the settings of the rendition or the default ones, with the quality of the rendition when it has one.
+     */
+    private static EncoderSettings encoderSettings(RenditionSpec spec) {
+        return spec.encoderSettings(encoderSettings);
+    }
+
+    private static boolean isOpaqueFormat(String formatName) {
+        String format = formatName.toLowerCase(Locale.ROOT);
+        return "jpg".equals(format) || "jpeg".equals(format) || "bmp".equals(format);
+    }
+
+    /**
+     * draw an image with alpha on white, for formats without an alpha channel.
+     */
+    private static BufferedImage flatten(BufferedImage image) {
+        BufferedImage opaque = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = opaque.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return opaque;
+    }
+
+    /**
+     * reserve the bytes of a decode, the dimensions come from the header so nothing has been decoded yet.
+     */
+    private static int admitDecode(ByteBudget budget, long bytes, int sourceWidth, int sourceHeight) throws IOException {
+        int reserved = budget.tryAcquire(bytes);
+        if (reserved >= 0) {
+            return reserved;
+        }
+        log.debug("decode of {}x{} waits for {} bytes of decode budget", sourceWidth, sourceHeight, bytes);
+        try {
+            return budget.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for decode budget");
+        }
+    }
+
+    /**
+     * recycle the decoded raster once it has been scaled, unless the scaled image is a view of it.
+     *
+     * @param decoded
+     * @param scaled
+     */
+    public static void recycleDecoded(DecodedImage decoded, BufferedImage scaled) {
+        if (scaled.getRaster().getDataBuffer() != decoded.getImage().getRaster().getDataBuffer()) {
+            recycle(decoded.getImage());
+        }
+    }
+
+    /**
+     * a destination on a pooled buffer when the reader decodes into 3 byte BGR (e.g. JPEG),
+     * the decoded raster is then recycled like any resized image instead of being allocated per image.
+     */
+    private static BufferedImage pooledDestination(ImageReader reader, int width, int height) throws IOException {
+        Iterator<ImageTypeSpecifier> imageTypes = reader.getImageTypes(0);
+        if (imageTypes.hasNext() && imageTypes.next().getBufferedImageType() == BufferedImage.TYPE_3BYTE_BGR) {
+            return PixelBufferPool.createBgrImage(width, height);
+        }
+        return null;
+    }
+
+    /**
+     * largest integer step whose subsampled image is still not smaller than the scaled one.
+     *
+     * @param scale
+     * @return
+     */
+    static int subsamplingStep(float scale) {
+        return scale >= 1f ? 1 : (int) Math.floor(1f / scale);
+    }
+
     /**
      * scale image and transfer to inputStream.
      *
@@ -266,17 +966,12 @@ public class ImageScaleUtil {
      */
     public static boolean scaleAndSaveLocal(File srcImageFile, File destImageFile, float scale) {
         try {
-            BufferedImage read = ImageIO.read(srcImageFile);
-            int width = (int) (read.getWidth() * scale);
-            int height = (int) (read.getHeight() * scale);
-            Image img = read.getScaledInstance(width, height, Image.SCALE_DEFAULT);
-            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-            Graphics2D graphics = image.createGraphics();
-            graphics.drawImage(img, 0, 0, null);
-            graphics.dispose();
+            BufferedImage image = readScaled(new FileImageInputStream(srcImageFile), scale);
             String fileName = srcImageFile.getName();
             String formatName = fileName.substring(fileName.lastIndexOf(".") + 1);
-            ImageIO.write(image, formatName, destImageFile);
+            try (OutputStream out = Files.newOutputStream(destImageFile.toPath())) {
+                ImageEncoder.write(image, formatName, encoderSettings, out);
+            }
         } catch (IOException e) {
             log.error("scale image fail ", e);
             return false;
@@ -295,16 +990,11 @@ public class ImageScaleUtil {
      */
     public static boolean scaleAndSaveLocal(InputStream srcImageFileInputStream, File destImageFile, String fileName, float scale) {
         try {
-            BufferedImage bufferedImageRead = ImageIO.read(srcImageFileInputStream);
-            int width = (int) (bufferedImageRead.getWidth() * scale);
-            int height = (int) (bufferedImageRead.getHeight() * scale);
-            Image img = bufferedImageRead.getScaledInstance(width, height, Image.SCALE_DEFAULT);
-            BufferedImage bufferedImageWrite = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-            Graphics2D graphics = bufferedImageWrite.createGraphics();
-            graphics.drawImage(img, 0, 0, null);
-            graphics.dispose();
+            BufferedImage bufferedImageWrite = readScaled(new MemoryCacheImageInputStream(srcImageFileInputStream), scale);
             String formatName = fileName.substring(fileName.lastIndexOf(".") + 1);
-            ImageIO.write(bufferedImageWrite, formatName, destImageFile);
+            try (OutputStream out = Files.newOutputStream(destImageFile.toPath())) {
+                ImageEncoder.write(bufferedImageWrite, formatName, encoderSettings, out);
+            }
         } catch (IOException e) {
             log.error("scale image file fail ", e);
             return false;
@@ -321,24 +1011,29 @@ public class ImageScaleUtil {
      * @return
      */
     public static InputStream scaleToInputStream(InputStream srcImageFileInputStream, String fileName, float scale) {
+        return scaleToBuffer(srcImageFileInputStream, fileName, scale).toInputStream();
+    }
+
+    /**
+     * scale image and keep the encoded bytes in the encoder's own buffer,
+     * the result can be uploaded with its exact size and without another copy.
+     *
+     * @param srcImageFileInputStream
+     * @param fileName
+     * @param scale
+     * @return
+     */
+    public static ExposedByteArrayOutputStream scaleToBuffer(InputStream srcImageFileInputStream, String fileName, float scale) {
         try {
-            BufferedImage bufferedImageRead = ImageIO.read(srcImageFileInputStream);
-            int width = (int) (bufferedImageRead.getWidth() * scale);
-            int height = (int) (bufferedImageRead.getHeight() * scale);
-            Image img = bufferedImageRead.getScaledInstance(width, height, Image.SCALE_DEFAULT);
-            BufferedImage bufferedImageWrite = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-            Graphics2D graphics = bufferedImageWrite.createGraphics();
-            graphics.drawImage(img, 0, 0, null);
-            graphics.dispose();
+            BufferedImage bufferedImageWrite = readScaled(new MemoryCacheImageInputStream(srcImageFileInputStream), scale);
             String formatName = fileName.substring(fileName.lastIndexOf(".") + 1);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ImageIO.write(bufferedImageWrite, formatName, bos);
-            return new ByteArrayInputStream(bos.toByteArray(), 0, bos.size());
+            ExposedByteArrayOutputStream encoded = encode(bufferedImageWrite, formatName);
+            recycle(bufferedImageWrite);
+            return encoded;
         } catch (IOException e) {
             log.error("scale image file fail ", e);
             throw new RuntimeException(e);
         }
-
     }
 
     /**
@@ -0,0 +1,43 @@
+package com.atom.cropimage.utils;
+
+/**
+ * an encoded rendition ready for upload.
+ *
+ * @author Atom
+ */
+public class Rendition {
+
+    private final RenditionSpec spec;
+    private final String destinationKey;
+    private final int width;
+    private final int height;
+    private final ExposedByteArrayOutputStream encoded;
+
+    public Rendition(RenditionSpec spec, String destinationKey, int width, int height, ExposedByteArrayOutputStream encoded) {
+        this.spec = spec;
+        this.destinationKey = destinationKey;
+        this.width = width;
+        this.height = height;
+        this.encoded = encoded;
+    }
+
+    public RenditionSpec getSpec() {
+        return spec;
+    }
+
+    public String getDestinationKey() {
+        return destinationKey;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public ExposedByteArrayOutputStream getEncoded() {
+        return encoded;
+    }
+}
@@ -0,0 +1,364 @@
+package com.atom.cropimage.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * encoded renditions in two LRU tiers, each bounded by the bytes it holds: a heap tier and a tier of files
+ * on local disk. new entries go to the heap tier, the entries it evicts are written to disk.
+ * a disk hit reads the file, mostly from the page cache; the files are not kept mapped, a mapping per entry
+ * would run into the per process limit of mappings and keep the blocks of evicted files until it is collected.
+ * <p>
+ * the key should contain everything the encoded bytes depend on, e.g. source key, eTag and transform parameters;
+ * entries of a replaced object are no longer looked up and age out like any unused entry.
+ * the disk directory belongs to the cache: files left by a previous run are deleted, all files on close.
+ * <p>
+ * meters on the micrometer global registry, tagged with the tier (memory, disk):
+ * rendition.cache.gets with result hit or miss, the disk tier is only asked on a memory miss;
+ * rendition.cache.evictions; rendition.cache.served.bytes; the gauges rendition.cache.size in bytes
+ * and rendition.cache.entries.
+ *
+ * @author Atom
+ */
+@Slf4j
+public class RenditionCache implements Closeable {
+
+    private static final String MEMORY = "memory";
+    private static final String DISK = "disk";
+
+    private final long memoryCapacity;
+    private final long diskCapacity;
+    private final int maxEntryBytes;
+    private final Path directory;
+
+    private final Object memoryLock = new Object();
+    /**
+     * access ordered, the eldest entry is the least recently used.
+     */
+    private final LinkedHashMap<String, byte[]> memoryEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+
+    private final Object diskLock = new Object();
+    /**
+     * access ordered.
+     */
+    private final LinkedHashMap<String, DiskEntry> diskEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes;
+    /**
+     * every file gets a new name, deleting an evicted file can never remove the file written for the key since.
+     */
+    private final AtomicLong fileSequence = new AtomicLong();
+
+    private final Counter memoryHits;
+    private final Counter memoryMisses;
+    private final Counter diskHits;
+    private final Counter diskMisses;
+    private final Counter memoryEvictions;
+    private final Counter diskEvictions;
+    private final Counter memoryServedBytes;
+    private final Counter diskServedBytes;
+
+    /**
+     * @param memoryCapacity bytes held on the heap
+     * @param diskCapacity   bytes held on disk, 0 for no disk tier
+     * @param maxEntryBytes  larger renditions are not cached, at most memoryCapacity
+     * @param directory      for the disk tier, created if missing
+     * @throws IOException
+     */
+    public RenditionCache(long memoryCapacity, long diskCapacity, int maxEntryBytes, Path directory) throws IOException {
+        if (memoryCapacity <= 0 || diskCapacity < 0 || maxEntryBytes <= 0 || maxEntryBytes > memoryCapacity) {
+            throw new IllegalArgumentException("invalid cache sizes, memory " + memoryCapacity + ", disk " + diskCapacity
+                    + ", max entry " + maxEntryBytes);
+        }
+        this.memoryCapacity = memoryCapacity;
+        this.diskCapacity = diskCapacity;
+        this.maxEntryBytes = maxEntryBytes;
+        this.directory = Files.createDirectories(directory);
+        deleteFiles();
+
+        memoryHits = gets(MEMORY, "hit");
+        memoryMisses = gets(MEMORY, "miss");
+        diskHits = gets(DISK, "hit");
+        diskMisses = gets(DISK, "miss");
+        memoryEvictions = evictions(MEMORY);
+        diskEvictions = evictions(DISK);
+        memoryServedBytes = servedBytes(MEMORY);
+        diskServedBytes = servedBytes(DISK);
+        Gauge.builder("rendition.cache.size", this, cache -> cache.memoryBytes())
+                .description("bytes held by a tier of the rendition cache").baseUnit("bytes").tag("tier", MEMORY)
+                .register(Metrics.globalRegistry);
+        Gauge.builder("rendition.cache.size", this, cache -> cache.diskBytes())
+                .description("bytes held by a tier of the rendition cache").baseUnit("bytes").tag("tier", DISK)
+                .register(Metrics.globalRegistry);
+        Gauge.builder("rendition.cache.entries", this, cache -> cache.memoryEntries())
+                .description("entries in a tier of the rendition cache").tag("tier", MEMORY)
+                .register(Metrics.globalRegistry);
+        Gauge.builder("rendition.cache.entries", this, cache -> cache.diskEntries())
+                .description("entries in a tier of the rendition cache").tag("tier", DISK)
+                .register(Metrics.globalRegistry);
+    }
+
+    /**
+     * a key of several parts, each prefixed with its length, so parts that contain any character
+     * (object keys with spaces, ...) can never run into each other.
+     *
+     * @param parts
+     * @return
+     */
+    public static String key(String... parts) {
+        StringBuilder key = new StringBuilder();
+        for (String part : parts) {
+            key.append(part.length()).append(':').append(part);
+        }
+        return key.toString();
+    }
+
+    /**
+     * @param key
+     * @return a read only buffer over the encoded rendition; null when not cached
+     */
+    public ByteBuffer get(String key) {
+        byte[] value;
+        synchronized (memoryLock) {
+            value = memoryEntries.get(key);
+        }
+        if (value != null) {
+            memoryHits.increment();
+            memoryServedBytes.increment(value.length);
+            return ByteBuffer.wrap(value).asReadOnlyBuffer();
+        }
+        memoryMisses.increment();
+        value = readDisk(key);
+        if (value == null) {
+            diskMisses.increment();
+            return null;
+        }
+        diskHits.increment();
+        diskServedBytes.increment(value.length);
+        return ByteBuffer.wrap(value).asReadOnlyBuffer();
+    }
+
+    /**
+     * cache an encoded rendition in the heap tier, moving the least recently used entries to disk
+     * when it is full. renditions larger than maxEntryBytes are ignored.
+     *
+     * @param key
+     * @param value not copied, must not be modified afterwards
+     */
+    public void put(String key, byte[] value) {
+        if (value.length > maxEntryBytes) {
+            return;
+        }
+        List<Map.Entry<String, byte[]>> evicted = new ArrayList<>();
+        synchronized (memoryLock) {
+            byte[] previous = memoryEntries.put(key, value);
+            memoryBytes += value.length - (previous == null ? 0 : previous.length);
+            Iterator<Map.Entry<String, byte[]>> eldest = memoryEntries.entrySet().iterator();
+            while (memoryBytes > memoryCapacity) {
+                Map.Entry<String, byte[]> entry = eldest.next();
+                eldest.remove();
+                memoryBytes -= entry.getValue().length;
+                evicted.add(entry);
+            }
+        }
+        // written outside the lock, gets of other keys do not wait for the disk
+        for (Map.Entry<String, byte[]> entry : evicted) {
+            memoryEvictions.increment();
+            writeDisk(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * the largest rendition that is cached.
+     */
+    public int getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * drops every entry and deletes the files of the disk tier.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (memoryLock) {
+            memoryEntries.clear();
+            memoryBytes = 0;
+        }
+        synchronized (diskLock) {
+            diskEntries.clear();
+            diskBytes = 0;
+        }
+        deleteFiles();
+    }
+
+    /**
+     * whether the key is in the heap tier, without touching its recency.
+     */
+    boolean inMemory(String key) {
+        synchronized (memoryLock) {
+            return memoryEntries.containsKey(key);
+        }
+    }
+
+    private byte[] readDisk(String key) {
+        DiskEntry entry;
+        synchronized (diskLock) {
+            entry = diskEntries.get(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+        byte[] value = new byte[(int) entry.size];
+        try (FileChannel channel = FileChannel.open(entry.file, StandardOpenOption.READ)) {
+            ByteBuffer target = ByteBuffer.wrap(value);
+            while (target.hasRemaining()) {
+                if (channel.read(target) < 0) {
+                    throw new EOFException("rendition cache file is shorter than " + entry.size + " bytes");
+                }
+            }
+            return value;
+        } catch (NoSuchFileException e) {
+            // evicted and deleted since the lookup
+            return null;
+        } catch (IOException e) {
+            log.warn("read rendition cache file [{}] error", entry.file, e);
+            return null;
+        }
+    }
+
+    private void writeDisk(String key, byte[] value) {
+        if (value.length > diskCapacity) {
+            return;
+        }
+        synchronized (diskLock) {
+            if (diskEntries.containsKey(key)) {
+                return;
+            }
+        }
+        // the entry only becomes visible once the file is complete
+        Path file = directory.resolve(Long.toString(fileSequence.incrementAndGet()));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer source = ByteBuffer.wrap(value);
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        } catch (IOException e) {
+            log.warn("write rendition cache file [{}] error", file, e);
+            deleteQuietly(file);
+            return;
+        }
+        DiskEntry previous;
+        List<DiskEntry> evicted = new ArrayList<>();
+        synchronized (diskLock) {
+            // written by two threads at once, the other file is dropped
+            previous = diskEntries.put(key, new DiskEntry(file, value.length));
+            diskBytes += value.length - (previous == null ? 0 : previous.size);
+            Iterator<DiskEntry> eldest = diskEntries.values().iterator();
+            while (diskBytes > diskCapacity) {
+                DiskEntry entry = eldest.next();
+                eldest.remove();
+                diskBytes -= entry.size;
+                evicted.add(entry);
+            }
+        }
+        if (previous != null) {
+            deleteQuietly(previous.file);
+        }
+        for (DiskEntry entry : evicted) {
+            diskEvictions.increment();
+            deleteQuietly(entry.file);
+        }
+    }
+
+    private void deleteFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(RenditionCache::deleteQuietly);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("delete rendition cache file [{}] error", file, e);
+        }
+    }
+
+    private long memoryBytes() {
+        synchronized (memoryLock) {
+            return memoryBytes;
+        }
+    }
+
+    private long diskBytes() {
+        synchronized (diskLock) {
+            return diskBytes;
+        }
+    }
+
+    private int memoryEntries() {
+        synchronized (memoryLock) {
+            return memoryEntries.size();
+        }
+    }
+
+    private int diskEntries() {
+        synchronized (diskLock) {
+            return diskEntries.size();
+        }
+    }
+
+    /**
+     * a file of the disk tier, deleted once evicted.
+     */
+    private static final class DiskEntry {
+        final Path file;
+        final long size;
+
+        DiskEntry(Path file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private static Counter gets(String tier, String result) {
+        return Counter.builder("rendition.cache.gets")
+                .description("lookups in a tier of the rendition cache")
+                .tag("tier", tier)
+                .tag("result", result)
+                .register(Metrics.globalRegistry);
+    }
+
+    private static Counter evictions(String tier) {
+        return Counter.builder("rendition.cache.evictions")
+                .description("entries evicted from a tier of the rendition cache, memory evictions move to disk")
+                .tag("tier", tier)
+                .register(Metrics.globalRegistry);
+    }
+
+    private static Counter servedBytes(String tier) {
+        return Counter.builder("rendition.cache.served.bytes")
+                .description("bytes of renditions served from a tier of the rendition cache")
+                .baseUnit("bytes")
+                .tag("tier", tier)
+                .register(Metrics.globalRegistry);
+    }
+}
@@ -0,0 +1,150 @@
+package com.atom.cropimage.utils;
+
+/**
+ * one output size of a source image: its target size, output format, encoder settings and destination key.
+ * the key template knows the placeholders {key} (source key), {base} (source key without suffix),
+ * {ext} (output format) and {name} (rendition name).
+ *
+ * @author Atom
+ */
+public class RenditionSpec {
+
+    public static final String DEFAULT_KEY_TEMPLATE = "{name}/{base}.{ext}";
+
+    private final String name;
+    private final float scale;
+    private final int maxWidth;
+    private final int maxHeight;
+    private final String formatName;
+    private final float quality;
+    private final String keyTemplate;
+    private final EncoderSettings encoderSettings;
+
+    private RenditionSpec(String name, float scale, int maxWidth, int maxHeight, String formatName, float quality, String keyTemplate,
+                          EncoderSettings encoderSettings) {
+        this.name = name;
+        this.scale = scale;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.formatName = formatName;
+        this.quality = quality;
+        this.keyTemplate = keyTemplate;
+        this.encoderSettings = encoderSettings;
+    }
+
+    /**
+     * scale x source size, in the source format.
+     */
+    public static RenditionSpec ofScale(String name, float scale) {
+        if (scale <= 0) {
+            throw new IllegalArgumentException("scale must be positive, got " + scale);
+        }
+        return new RenditionSpec(name, scale, 0, 0, null, -1f, DEFAULT_KEY_TEMPLATE, null);
+    }
+
+    /**
+     * fit inside maxWidth x maxHeight keeping the aspect ratio, never enlarged, in the source format.
+     */
+    public static RenditionSpec ofBox(String name, int maxWidth, int maxHeight) {
+        if (maxWidth <= 0 || maxHeight <= 0) {
+            throw new IllegalArgumentException("box must be positive, got " + maxWidth + "x" + maxHeight);
+        }
+        return new RenditionSpec(name, 0f, maxWidth, maxHeight, null, -1f, DEFAULT_KEY_TEMPLATE, null);
+    }
+
+    /**
+     * @param formatName output format, null keeps the format of the source key
+     */
+    public RenditionSpec format(String formatName) {
+        return new RenditionSpec(name, scale, maxWidth, maxHeight, formatName, quality, keyTemplate, encoderSettings);
+    }
+
+    /**
+     * @param quality compression quality in [0, 1] for formats that support it, negative keeps the writer default
+     */
+    public RenditionSpec quality(float quality) {
+        return new RenditionSpec(name, scale, maxWidth, maxHeight, formatName, quality, keyTemplate, encoderSettings);
+    }
+
+    public RenditionSpec keyTemplate(String keyTemplate) {
+        return new RenditionSpec(name, scale, maxWidth, maxHeight, formatName, quality, keyTemplate, encoderSettings);
+    }
+
+    /**
+     * @param encoderSettings how this rendition is encoded, null uses the settings of {@link ImageScaleUtil}.
+     *                        a quality set on the rendition takes precedence over theirs
+     */
+    public RenditionSpec encoder(EncoderSettings encoderSettings) {
+        return new RenditionSpec(name, scale, maxWidth, maxHeight, formatName, quality, keyTemplate, encoderSettings);
+    }
+
+    /**
+     * the size of this rendition for a source of sourceWidth x sourceHeight.
+     *
+     * @return {width, height}
+     */
+    public int[] targetSize(int sourceWidth, int sourceHeight) {
+        if (scale > 0) {
+            // truncated like the scale methods of ImageScaleUtil
+            return new int[]{Math.max(1, (int) (sourceWidth * scale)), Math.max(1, (int) (sourceHeight * scale))};
+        }
+        double factor = Math.min(1.0, Math.min((double) maxWidth / sourceWidth, (double) maxHeight / sourceHeight));
+        return new int[]{Math.max(1, (int) Math.round(sourceWidth * factor)), Math.max(1, (int) Math.round(sourceHeight * factor))};
+    }
+
+    /**
+     * the output format for a source key, falls back to the source suffix.
+     */
+    public String formatName(String sourceKey) {
+        return formatName != null ? formatName : sourceKey.substring(sourceKey.lastIndexOf(".") + 1);
+    }
+
+    public String destinationKey(String sourceKey) {
+        int index = sourceKey.lastIndexOf(".");
+        String base = index > 0 ? sourceKey.substring(0, index) : sourceKey;
+        return keyTemplate.replace("{key}", sourceKey)
+                .replace("{base}", base)
+                .replace("{ext}", formatName(sourceKey))
+                .replace("{name}", name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public float getQuality() {
+        return quality;
+    }
+
+    public EncoderSettings getEncoderSettings() {
+        return encoderSettings;
+    }
+
+    /**
+     * the settings this rendition is encoded with.
+     *
+     * @param defaults used when the rendition has no settings of its own
+     * @return with the quality of the rendition when it has one
+     */
+    public EncoderSettings encoderSettings(EncoderSettings defaults) {
+        EncoderSettings settings = encoderSettings != null ? encoderSettings : defaults;
+        return quality >= 0 ? settings.quality(quality) : settings;
+    }
+
+    /**
+     * everything the encoded bytes of this rendition depend on for a source key: size, format and encoder settings,
+     * but not the name or the key template. the format is the last field, the others never contain its separator.
+     *
+     * @param sourceKey
+     * @param defaults  the encoder settings used when the rendition has none
+     * @return
+     */
+    public String cacheKey(String sourceKey, EncoderSettings defaults) {
+        return scale + "," + maxWidth + "," + maxHeight + "," + encoderSettings(defaults).cacheKey() + "," + formatName(sourceKey);
+    }
+
+    @Override
+    public String toString() {
+        return name + (scale > 0 ? "[x" + scale : "[" + maxWidth + "x" + maxHeight) + (formatName == null ? "" : " " + formatName) + "]";
+    }
+}
@@ -0,0 +1,273 @@
+package com.atom.cropimage.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * timers, in-flight gauges and error counters per stage of the scale job, and the bytes moved to and from S3.
+ * the meters are registered once on the micrometer global registry, which the actuator of the spring boot application
+ * joins; a batch run outside spring adds a registry of its own (e.g. a SimpleMeterRegistry) and logs {@link #summary()}.
+ * without any registry the meters are no-ops.
+ * <p>
+ * a stage is timed with {@link #start(Stage)} and {@link #stop(Stage, long, boolean)} on the same thread, the meters are looked up
+ * by array index, so the hot path pays for two nanoTime calls, two thread local lookups, two atomic updates
+ * and the timer update. the reads of a streamed body ({@link #timedBody}) are GET time: a stage timed meanwhile
+ * on the reading thread, e.g. the decode that pulls the body, leaves them out.
+ *
+ * @author Atom
+ */
+public final class ScaleMetrics {
+
+    public enum Stage {
+        /**
+         * the whole body when it is downloaded at once; when it is streamed, the response headers
+         * and the time spent in the reads of the body, recorded once the stream is closed.
+         */
+        GET,
+        DECODE,
+        RESAMPLE,
+        ENCODE,
+        PUT;
+
+        private final String tag = name().toLowerCase(Locale.ROOT);
+    }
+
+    private static final double MB = 1024 * 1024;
+    private static final Stage[] STAGES = Stage.values();
+    private static final Timer[] timers = new Timer[STAGES.length];
+    private static final Counter[] errors = new Counter[STAGES.length];
+    private static final AtomicInteger[] inFlight = new AtomicInteger[STAGES.length];
+    private static final Counter bytesIn;
+    private static final Counter bytesOut;
+    /**
+     * per thread, the nanos spent reading streamed bodies, which the stages timed meanwhile do not count.
+     */
+    private static final ThreadLocal<long[]> bodyReadNanos = ThreadLocal.withInitial(() -> new long[1]);
+
+    static {
+        for (Stage stage : STAGES) {
+            timers[stage.ordinal()] = Timer.builder("scale.stage.duration")
+                    .description("time spent per object in a stage of the scale job")
+                    .tag("stage", stage.tag)
+                    .publishPercentiles(0.5, 0.99)
+                    .publishPercentileHistogram()
+                    .register(Metrics.globalRegistry);
+            errors[stage.ordinal()] = Counter.builder("scale.stage.errors")
+                    .description("objects that failed in a stage of the scale job")
+                    .tag("stage", stage.tag)
+                    .register(Metrics.globalRegistry);
+            AtomicInteger count = new AtomicInteger();
+            inFlight[stage.ordinal()] = count;
+            Gauge.builder("scale.stage.in.flight", count, AtomicInteger::get)
+                    .description("objects currently in a stage of the scale job")
+                    .tag("stage", stage.tag)
+                    .register(Metrics.globalRegistry);
+        }
+        bytesIn = Counter.builder("scale.transfer.bytes")
+                .description("bytes downloaded from or uploaded to S3")
+                .baseUnit("bytes")
+                .tag("direction", "in")
+                .register(Metrics.globalRegistry);
+        bytesOut = Counter.builder("scale.transfer.bytes")
+                .description("bytes downloaded from or uploaded to S3")
+                .baseUnit("bytes")
+                .tag("direction", "out")
+                .register(Metrics.globalRegistry);
+    }
+
+    private ScaleMetrics() {
+    }
+
+    /**
+     * @param stage
+     * @return the start time to pass to {@link #stop(Stage, long, boolean)}
+     */
+    public static long start(Stage stage) {
+        inFlight[stage.ordinal()].incrementAndGet();
+        return System.nanoTime() - bodyReadNanos.get()[0];
+    }
+
+    /**
+     * end a stage, usually from a finally block. only successful stages are timed,
+     * the time of a failure would skew the latency of the others, failures are counted instead.
+     *
+     * @param stage
+     * @param startNanos as returned by {@link #start(Stage)}
+     * @param succeeded
+     */
+    public static void stop(Stage stage, long startNanos, boolean succeeded) {
+        stopAfter(stage, elapsed(startNanos), succeeded);
+    }
+
+    /**
+     * start a stage that is stopped on another thread, e.g. by the async client's event loop,
+     * with {@link #stopAsync(Stage, long, boolean)}.
+     *
+     * @param stage
+     * @return the start time to pass to {@link #stopAsync(Stage, long, boolean)}
+     */
+    public static long startAsync(Stage stage) {
+        inFlight[stage.ordinal()].incrementAndGet();
+        return System.nanoTime();
+    }
+
+    public static void stopAsync(Stage stage, long startNanos, boolean succeeded) {
+        stopAfter(stage, System.nanoTime() - startNanos, succeeded);
+    }
+
+    /**
+     * wrap the body of a GET opened since {@link #start(Stage)}, the GET is stopped when the stream is closed.
+     *
+     * @param body
+     * @param startNanos as returned by {@link #start(Stage)}
+     * @return
+     */
+    public static InputStream timedBody(InputStream body, long startNanos) {
+        return new TimedBodyInputStream(body, elapsed(startNanos));
+    }
+
+    private static long elapsed(long startNanos) {
+        return System.nanoTime() - bodyReadNanos.get()[0] - startNanos;
+    }
+
+    private static void stopAfter(Stage stage, long nanos, boolean succeeded) {
+        if (succeeded) {
+            timers[stage.ordinal()].record(nanos, TimeUnit.NANOSECONDS);
+        } else {
+            errors[stage.ordinal()].increment();
+        }
+        inFlight[stage.ordinal()].decrementAndGet();
+    }
+
+    public static void bytesIn(long bytes) {
+        if (bytes > 0) {
+            bytesIn.increment(bytes);
+        }
+    }
+
+    public static void bytesOut(long bytes) {
+        if (bytes > 0) {
+            bytesOut.increment(bytes);
+        }
+    }
+
+    /**
+     * one line per stage with its count, errors, mean, p50, p99 and max, then the bytes moved.
+     */
+    public static String summary() {
+        StringBuilder summary = new StringBuilder(String.format("%-9s %9s %7s %10s %10s %10s %10s%n",
+                "stage", "count", "errors", "mean ms", "p50 ms", "p99 ms", "max ms"));
+        for (Stage stage : STAGES) {
+            Timer timer = timers[stage.ordinal()];
+            HistogramSnapshot snapshot = timer.takeSnapshot();
+            Map<Double, Double> percentiles = new HashMap<>();
+            for (ValueAtPercentile value : snapshot.percentileValues()) {
+                percentiles.put(value.percentile(), value.value(TimeUnit.MILLISECONDS));
+            }
+            summary.append(String.format("%-9s %9d %7.0f %10.1f %10.1f %10.1f %10.1f%n", stage.tag, snapshot.count(),
+                    errors[stage.ordinal()].count(), snapshot.mean(TimeUnit.MILLISECONDS),
+                    percentiles.getOrDefault(0.5, Double.NaN), percentiles.getOrDefault(0.99, Double.NaN),
+                    snapshot.max(TimeUnit.MILLISECONDS)));
+        }
+        summary.append(String.format("bytes in %.1f MB, bytes out %.1f MB", bytesIn.count() / MB, bytesOut.count() / MB));
+        return summary.toString();
+    }
+
+    /**
+     * times its reads as GET and counts the bytes read, failed once a read has failed.
+     */
+    private static final class TimedBodyInputStream extends FilterInputStream {
+
+        private long nanos;
+        private long bytesRead;
+        private boolean failed;
+        private boolean closed;
+
+        TimedBodyInputStream(InputStream body, long headerNanos) {
+            super(body);
+            this.nanos = headerNanos;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            try {
+                int b = in.read();
+                if (b >= 0) {
+                    bytesRead++;
+                }
+                return b;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            } finally {
+                readFor(start);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            try {
+                int n = in.read(b, off, len);
+                if (n > 0) {
+                    bytesRead += n;
+                }
+                return n;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            } finally {
+                readFor(start);
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long start = System.nanoTime();
+            try {
+                long skipped = in.skip(n);
+                bytesRead += skipped;
+                return skipped;
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            } finally {
+                readFor(start);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                in.close();
+            } finally {
+                bytesIn(bytesRead);
+                stopAfter(Stage.GET, nanos, !failed);
+            }
+        }
+
+        private void readFor(long start) {
+            long read = System.nanoTime() - start;
+            nanos += read;
+            bodyReadNanos.get()[0] += read;
+        }
+    }
+}
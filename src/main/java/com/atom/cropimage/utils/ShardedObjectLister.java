@@ -0,0 +1,244 @@
+package com.atom.cropimage.utils;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * list a bucket as several shards in parallel and merge them into one iterator.
+ * a single ListObjectsV2 continuation chain is strictly sequential, splitting the keyspace
+ * by delimiter or by a given prefix set lets every shard walk its own chain concurrently.
+ * the order of the merged objects is not defined.
+ * a listing that is not iterated to the end must be closed, its shard threads would block on the full queue forever.
+ *
+ * @author Atom
+ */
+@Slf4j
+public class ShardedObjectLister {
+
+    private static final int PAGE_SIZE = 1000;
+    private static final S3Object END = S3Object.builder().build();
+
+    private final S3Client s3Client;
+    private final int parallelism;
+    private final int queueCapacity;
+
+    public ShardedObjectLister(S3Client s3Client, int parallelism) {
+        this(s3Client, parallelism, 10 * PAGE_SIZE);
+    }
+
+    /**
+     * @param s3Client
+     * @param parallelism   shards listed at the same time
+     * @param queueCapacity listed objects buffered ahead of the consumer
+     */
+    public ShardedObjectLister(S3Client s3Client, int parallelism, int queueCapacity) {
+        this.s3Client = s3Client;
+        this.parallelism = parallelism;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * discover the shards from the keyspace: the common prefixes under the delimiter become shards,
+     * down to the given depth, objects found on the way are emitted directly.
+     *
+     * @param bucketName
+     * @param delimiter  usually "/"
+     * @param depth      levels of common prefixes to split on, 0 lists the bucket as one shard
+     * @return
+     */
+    public Listing listByDelimiter(String bucketName, String delimiter, int depth) {
+        Listing listing = new Listing(bucketName, delimiter);
+        listing.submit("", depth);
+        listing.release();
+        return listing;
+    }
+
+    /**
+     * list each prefix as one shard, the prefixes must not overlap or objects are listed twice.
+     *
+     * @param bucketName
+     * @param prefixes
+     * @return
+     */
+    public Listing listPrefixes(String bucketName, Collection<String> prefixes) {
+        Listing listing = new Listing(bucketName, null);
+        prefixes.forEach(prefix -> listing.submit(prefix, 0));
+        listing.release();
+        return listing;
+    }
+
+    /**
+     * one run of the lister, the shards feed the queue and the consumer iterates it.
+     */
+    public final class Listing implements Iterator<S3Object>, Closeable {
+        private final String bucketName;
+        private final String delimiter;
+        private final BlockingQueue<S3Object> queue = new ArrayBlockingQueue<>(queueCapacity);
+        /**
+         * starts with a guard count for the caller submitting the first shards, released by {@link #release()}:
+         * a shard finishing before the next one is submitted must not end the listing.
+         */
+        private final AtomicInteger outstanding = new AtomicInteger(1);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                new ThreadFactoryBuilder().setNameFormat("s3-list-shard-%d").setDaemon(true).build());
+        private volatile boolean closed;
+        private S3Object next;
+
+        private Listing(String bucketName, String delimiter) {
+            this.bucketName = bucketName;
+            this.delimiter = delimiter;
+        }
+
+        /**
+         * children are submitted before their parent completes, so outstanding only reaches 0 at the very end.
+         */
+        private void submit(String prefix, int depth) {
+            outstanding.incrementAndGet();
+            executor.execute(() -> {
+                try {
+                    if (depth > 0) {
+                        split(prefix, depth);
+                    } else {
+                        listShard(prefix);
+                    }
+                } catch (Throwable e) {
+                    if (!closed) {
+                        log.error("list shard [{}] of bucket [{}] fail ", prefix, bucketName, e);
+                        failure.compareAndSet(null, e);
+                    }
+                } finally {
+                    release();
+                }
+            });
+        }
+
+        private void release() {
+            if (outstanding.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+
+        /**
+         * @throws InterruptedException also once the listing is closed, to stop the shard
+         */
+        private void emit(S3Object object) throws InterruptedException {
+            if (closed) {
+                throw new InterruptedException("listing of bucket " + bucketName + " is closed");
+            }
+            queue.put(object);
+        }
+
+        private void split(String prefix, int depth) throws InterruptedException {
+            ListObjectsV2Request request = ListObjectsV2Request.builder()
+                    .bucket(bucketName)
+                    .prefix(prefix)
+                    .delimiter(delimiter)
+                    .maxKeys(PAGE_SIZE)
+                    .build();
+            String continuationToken = null;
+            do {
+                ListObjectsV2Response response = s3Client.listObjectsV2(request.toBuilder().continuationToken(continuationToken).build());
+                for (S3Object object : response.contents()) {
+                    emit(object);
+                }
+                for (CommonPrefix commonPrefix : response.commonPrefixes()) {
+                    submit(commonPrefix.prefix(), depth - 1);
+                }
+                continuationToken = response.nextContinuationToken();
+            } while (continuationToken != null);
+        }
+
+        private void listShard(String prefix) throws InterruptedException {
+            ListObjectsV2Request request = ListObjectsV2Request.builder()
+                    .bucket(bucketName)
+                    .prefix(prefix)
+                    .maxKeys(PAGE_SIZE)
+                    .build();
+            String continuationToken = null;
+            int count = 0;
+            do {
+                ListObjectsV2Response response = s3Client.listObjectsV2(request.toBuilder().continuationToken(continuationToken).build());
+                for (S3Object object : response.contents()) {
+                    emit(object);
+                    count++;
+                }
+                continuationToken = response.nextContinuationToken();
+            } while (continuationToken != null);
+            log.debug("listed shard [{}] of bucket [{}], {} objects", prefix, bucketName, count);
+        }
+
+        private void finish() {
+            executor.shutdown();
+            if (closed) {
+                return;
+            }
+            try {
+                queue.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * stop the shards and drop what they listed, the iteration ends. to be called from the consumer thread.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            executor.shutdownNow();
+            // a shard blocked on the full queue is interrupted, one about to put sees closed
+            queue.clear();
+            next = END;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (closed) {
+                return false;
+            }
+            if (next == null) {
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted while listing bucket " + bucketName, e);
+                }
+            }
+            if (next == END) {
+                Throwable e = failure.get();
+                if (e != null) {
+                    throw new IllegalStateException("list bucket " + bucketName + " fail", e);
+                }
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public S3Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            S3Object object = next;
+            next = null;
+            return object;
+        }
+    }
+}
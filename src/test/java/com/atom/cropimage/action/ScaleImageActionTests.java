@@ -0,0 +1,112 @@
+package com.atom.cropimage.action;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScaleImageActionTests {
+
+    private static final int PARALLELISM = 4;
+
+    private static S3Object object(int i, Long size) {
+        return S3Object.builder().key("k" + i).size(size).build();
+    }
+
+    /**
+     * the leaf batches of a root task, split the way compute() would split it.
+     */
+    private static List<List<S3Object>> leaves(List<S3Object> objects) {
+        ScaleImageAction root = new ScaleImageAction("source", "dest", objects);
+        root.plan(PARALLELISM);
+        List<List<S3Object>> leaves = new ArrayList<>();
+        collect(root, leaves);
+        return leaves;
+    }
+
+    private static void collect(ScaleImageAction action, List<List<S3Object>> leaves) {
+        if (action.isLeaf()) {
+            leaves.add(action.getObjects());
+            return;
+        }
+        for (ScaleImageAction half : action.split()) {
+            collect(half, leaves);
+        }
+    }
+
+    private static void assertEveryObjectOnce(List<S3Object> objects, List<List<S3Object>> leaves) {
+        Set<String> keys = new HashSet<>();
+        int count = 0;
+        for (List<S3Object> leaf : leaves) {
+            for (S3Object object : leaf) {
+                assertTrue(keys.add(object.key()), object.key());
+                count++;
+            }
+        }
+        assertEquals(objects.size(), count);
+    }
+
+    private static int largestLeaf(List<List<S3Object>> leaves) {
+        return leaves.stream().mapToInt(List::size).max().orElse(0);
+    }
+
+    @Test
+    void sizedObjectsAreSplitByBytes() {
+        List<S3Object> objects = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            objects.add(object(i, (long) (i % 20 + 1) * 1024 * 1024));
+        }
+        List<List<S3Object>> leaves = leaves(objects);
+        assertEveryObjectOnce(objects, leaves);
+        assertTrue(leaves.size() >= PARALLELISM, "leaves " + leaves.size());
+    }
+
+    @Test
+    void unsizedObjectsAreSplitByCount() {
+        List<S3Object> objects = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            objects.add(object(i, null));
+        }
+        List<List<S3Object>> leaves = leaves(objects);
+        assertEveryObjectOnce(objects, leaves);
+        assertTrue(leaves.size() >= PARALLELISM, "leaves " + leaves.size());
+        assertTrue(largestLeaf(leaves) <= 2 * 200 / leaves.size(), "largest leaf " + largestLeaf(leaves));
+    }
+
+    @Test
+    void emptyObjectsAreNotAllGivenToOneHalf() {
+        List<S3Object> objects = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            objects.add(object(i, 0L));
+        }
+        List<List<S3Object>> leaves = leaves(objects);
+        assertEveryObjectOnce(objects, leaves);
+        assertTrue(leaves.size() >= PARALLELISM, "leaves " + leaves.size());
+        assertTrue(largestLeaf(leaves) <= 2 * 200 / leaves.size(), "largest leaf " + largestLeaf(leaves));
+    }
+
+    @Test
+    void unsizedObjectsAreSpreadAmongSizedOnes() {
+        List<S3Object> objects = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            objects.add(object(i, i % 2 == 0 ? null : (long) (i % 10 + 1) * 1024 * 1024));
+        }
+        List<List<S3Object>> leaves = leaves(objects);
+        assertEveryObjectOnce(objects, leaves);
+        assertTrue(leaves.size() >= PARALLELISM, "leaves " + leaves.size());
+        long leavesWithUnsized = leaves.stream().filter(leaf -> leaf.stream().anyMatch(o -> o.size() == null)).count();
+        assertTrue(leavesWithUnsized > 1, "unsized objects in " + leavesWithUnsized + " leaves");
+    }
+
+    @Test
+    void aSingleObjectIsNotSplit() {
+        List<S3Object> objects = new ArrayList<>();
+        objects.add(object(0, 100L * 1024 * 1024));
+        assertEquals(1, leaves(objects).size());
+    }
+}
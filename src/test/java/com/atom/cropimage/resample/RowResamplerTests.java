@@ -0,0 +1,91 @@
+package com.atom.cropimage.resample;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RowResamplerTests {
+
+    /**
+     * with the destination, above {@link RowResampler#PARALLEL_THRESHOLD} pixels.
+     */
+    private static final int SOURCE_WIDTH = 2400;
+    private static final int SOURCE_HEIGHT = 1800;
+
+    private static ImagePixels randomSource(long seed) {
+        BufferedImage image = new BufferedImage(SOURCE_WIDTH, SOURCE_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        Random random = new Random(seed);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextInt();
+        }
+        return ImagePixels.of(image);
+    }
+
+    private static int[] pixels(ImagePixels image) {
+        // pooled buffers may be longer than the image
+        return Arrays.copyOf(image.getData(), image.getWidth() * image.getHeight());
+    }
+
+    private static int[] serial(RowResampler resampler, ImagePixels source, int width, int height) {
+        ImagePixels dest = ImagePixels.create(width, height, source.hasAlpha());
+        resampler.prepare(source, dest).rows(0, height);
+        return pixels(dest);
+    }
+
+    private static int[] stripParallel(RowResampler resampler, ImagePixels source, int width, int height) throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            return pixels(pool.submit(() -> resampler.resample(source, width, height)).get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * the destinations are not released and the pool is emptied first, a row left out by a strip can not
+     * show the pixels of the other pass through a reused buffer.
+     */
+    private static void assertSameAsSerial(RowResampler resampler, int width, int height) throws Exception {
+        PixelBufferPool.clear();
+        ImagePixels source = randomSource(width * 31L + height);
+        assertTrue((long) SOURCE_WIDTH * SOURCE_HEIGHT + (long) width * height >= RowResampler.PARALLEL_THRESHOLD);
+        assertArrayEquals(serial(resampler, source, width, height), stripParallel(resampler, source, width, height));
+    }
+
+    @Test
+    void nearestStripsMatchTheSerialPass() throws Exception {
+        assertSameAsSerial(new NearestResampler(), 1001, 733);
+    }
+
+    @Test
+    void halvingStripsMatchTheSerialPass() throws Exception {
+        assertSameAsSerial(new HalvingResampler(), SOURCE_WIDTH / 2, SOURCE_HEIGHT / 2);
+    }
+
+    @Test
+    void boxStripsMatchTheSerialPass() throws Exception {
+        assertSameAsSerial(new SeparableResampler(Kernel.BOX), 1001, 733);
+    }
+
+    @Test
+    void triangleStripsMatchTheSerialPass() throws Exception {
+        assertSameAsSerial(new SeparableResampler(Kernel.TRIANGLE), 1001, 733);
+    }
+
+    @Test
+    void lanczosStripsMatchTheSerialPass() throws Exception {
+        assertSameAsSerial(new SeparableResampler(Kernel.LANCZOS3), 1001, 733);
+    }
+
+    @Test
+    void lanczosUpscaleStripsMatchTheSerialPass() throws Exception {
+        assertSameAsSerial(new SeparableResampler(Kernel.LANCZOS3), 2500, 1900);
+    }
+}
@@ -0,0 +1,47 @@
+package com.atom.cropimage.utils;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CheckpointManifestTests {
+
+    private static S3Object object(String key, String eTag) {
+        return S3Object.builder().key(key).eTag(eTag).size(1L).build();
+    }
+
+    @Test
+    void rerunSkipsCompletedAndUnchangedObjects() throws IOException {
+        Path file = Files.createTempDirectory("manifest").resolve("manifest.tsv");
+        try (CheckpointManifest manifest = CheckpointManifest.open(file)) {
+            List<String> pending = manifest.selectPending(Stream.of(object("a.jpg", "1"), object("b c\t.jpg", "2"), object("d.png", "3")));
+            assertEquals(Arrays.asList("a.jpg", "b c\t.jpg", "d.png"), pending);
+            manifest.markCompleted("a.jpg");
+            manifest.markCompleted("b c\t.jpg");
+            manifest.markFailed("d.png");
+        }
+        // a crash in the middle of a line
+        Files.write(file, "COMPLETED\t9".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (CheckpointManifest manifest = CheckpointManifest.open(file)) {
+            List<String> pending = manifest.selectPending(Stream.of(object("a.jpg", "1"), object("b c\t.jpg", "changed"), object("d.png", "3")));
+            assertEquals(Arrays.asList("b c\t.jpg", "d.png"), pending);
+            manifest.markCompleted("d.png");
+        }
+        try (CheckpointManifest manifest = CheckpointManifest.open(file)) {
+            assertEquals(Collections.singletonList("b c\t.jpg"),
+                    manifest.selectPending(Stream.of(object("a.jpg", "1"), object("b c\t.jpg", "changed"), object("d.png", "3"))));
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.atom.cropimage.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EncodeBufferPoolTests {
+
+    private static final long MAX_RETAINED_BYTES = Runtime.getRuntime().maxMemory() / 16;
+
+    @BeforeEach
+    void emptyPool() {
+        EncodeBufferPool.clear();
+    }
+
+    @AfterEach
+    void restorePool() {
+        EncodeBufferPool.clear();
+        EncodeBufferPool.setMaxRetainedBytes(MAX_RETAINED_BYTES);
+    }
+
+    @Test
+    void retainedBytesAreCapped() {
+        ExposedByteArrayOutputStream[] buffers = new ExposedByteArrayOutputStream[5];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = EncodeBufferPool.acquire();
+        }
+        int capacity = buffers[0].capacity();
+        EncodeBufferPool.setMaxRetainedBytes(3L * capacity);
+        for (ExposedByteArrayOutputStream buffer : buffers) {
+            EncodeBufferPool.release(buffer);
+        }
+        assertEquals(3L * capacity, EncodeBufferPool.getRetainedBytes());
+
+        ExposedByteArrayOutputStream reused = EncodeBufferPool.acquire();
+        assertSame(buffers[2], reused, "the last buffer kept is handed out first");
+        assertEquals(2L * capacity, EncodeBufferPool.getRetainedBytes());
+    }
+
+    @Test
+    void grownBuffersCountWithTheirCapacity() {
+        ExposedByteArrayOutputStream small = EncodeBufferPool.acquire();
+        ExposedByteArrayOutputStream grown = EncodeBufferPool.acquire();
+        byte[] chunk = new byte[small.capacity()];
+        grown.write(chunk, 0, chunk.length);
+        grown.write(chunk, 0, chunk.length);
+        EncodeBufferPool.setMaxRetainedBytes(grown.capacity());
+
+        EncodeBufferPool.release(grown);
+        EncodeBufferPool.release(small);
+        assertEquals(grown.capacity(), EncodeBufferPool.getRetainedBytes(), "the small buffer no longer fits");
+        assertEquals(0, EncodeBufferPool.acquire().size(), "buffers are reset when released");
+    }
+}
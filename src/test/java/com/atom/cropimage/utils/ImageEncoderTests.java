@@ -0,0 +1,154 @@
+package com.atom.cropimage.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.NodeList;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageEncoderTests {
+
+    private static final String JPEG_IMAGE_METADATA = "javax_imageio_jpeg_image_1.0";
+
+    @AfterEach
+    void emptyPool() {
+        EncodeBufferPool.clear();
+    }
+
+    /**
+     * smooth gradients with some noise, compressible but not trivially.
+     */
+    private static BufferedImage photo(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = x * 255 / width;
+                int g = y * 255 / height;
+                int b = (x + y + random.nextInt(16)) % 256;
+                image.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        }
+        return image;
+    }
+
+    private static byte[] encode(BufferedImage image, String formatName, EncoderSettings settings) throws IOException {
+        ExposedByteArrayOutputStream encoded = ImageEncoder.encode(image, formatName, settings);
+        try {
+            return encoded.toByteArray();
+        } finally {
+            EncodeBufferPool.release(encoded);
+        }
+    }
+
+    /**
+     * horizontal and vertical sampling factors of every JPEG component, in component order.
+     */
+    private static int[] samplingFactors(byte[] jpeg) throws IOException {
+        ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+        try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg))) {
+            reader.setInput(iis);
+            IIOMetadataNode tree = (IIOMetadataNode) reader.getImageMetadata(0).getAsTree(JPEG_IMAGE_METADATA);
+            NodeList components = tree.getElementsByTagName("componentSpec");
+            int[] factors = new int[2 * components.getLength()];
+            for (int i = 0; i < components.getLength(); i++) {
+                IIOMetadataNode component = (IIOMetadataNode) components.item(i);
+                factors[2 * i] = Integer.parseInt(component.getAttribute("HsamplingFactor"));
+                factors[2 * i + 1] = Integer.parseInt(component.getAttribute("VsamplingFactor"));
+            }
+            return factors;
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    @Test
+    void chromaIsSubsampledByDefault() throws IOException {
+        int[] factors = samplingFactors(encode(photo(64, 64), "jpeg", EncoderSettings.DEFAULT));
+        assertArrayEquals(new int[]{2, 2, 1, 1, 1, 1}, factors, Arrays.toString(factors));
+    }
+
+    @Test
+    void chromaCanBeKeptAtFullResolution() throws IOException {
+        EncoderSettings settings = EncoderSettings.DEFAULT.chromaSubsampling(false);
+        int[] factors = samplingFactors(encode(photo(64, 64), "jpeg", settings));
+        assertArrayEquals(new int[]{1, 1, 1, 1, 1, 1}, factors, Arrays.toString(factors));
+        assertEquals(64, ImageIO.read(new ByteArrayInputStream(encode(photo(64, 64), "jpeg", settings))).getWidth());
+    }
+
+    @Test
+    void lowerQualityIsSmaller() throws IOException {
+        BufferedImage image = photo(256, 256);
+        int low = encode(image, "jpeg", EncoderSettings.DEFAULT.quality(0.3f)).length;
+        int high = encode(image, "jpeg", EncoderSettings.DEFAULT.quality(0.95f)).length;
+        assertTrue(low < high, low + " < " + high);
+    }
+
+    @Test
+    void pngCompressionLevelIsApplied() throws IOException {
+        BufferedImage image = photo(256, 256);
+        byte[] stored = encode(image, "png", EncoderSettings.DEFAULT.compressionLevel(0));
+        byte[] deflated = encode(image, "png", EncoderSettings.DEFAULT.compressionLevel(9));
+        if (ImageIO.getImageWritersByFormatName("png").next().getDefaultWriteParam().canWriteCompressed()) {
+            assertTrue(deflated.length < stored.length, deflated.length + " < " + stored.length);
+            assertTrue(stored.length > 256 * 256 * 3, "level 0 stores the pixels");
+        } else {
+            assertArrayEquals(deflated, stored, "a writer without compression ignores the level");
+        }
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(stored));
+        assertEquals(image.getRGB(100, 100), decoded.getRGB(100, 100), "lossless");
+    }
+
+    @Test
+    void aWriterThatFailedIsNotReused() throws IOException {
+        BufferedImage image = photo(128, 128);
+        byte[] before = encode(image, "jpeg", EncoderSettings.DEFAULT);
+
+        // the connection drops once the headers are out, in the middle of the image data
+        OutputStream failing = new OutputStream() {
+            private int written;
+
+            @Override
+            public void write(int b) throws IOException {
+                if (++written > 1000) {
+                    throw new IOException("connection reset");
+                }
+            }
+        };
+        assertThrows(IOException.class, () -> ImageEncoder.write(image, "jpeg", EncoderSettings.DEFAULT, failing));
+
+        assertArrayEquals(before, encode(image, "jpeg", EncoderSettings.DEFAULT), "the next image is encoded as before");
+    }
+
+    @Test
+    void aFailedEncodeGivesItsBufferBack() {
+        // pixels that can not be read, like a raster backed by a file that went away
+        BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB) {
+            @Override
+            public Raster getData(Rectangle rect) {
+                throw new IllegalStateException("pixels gone");
+            }
+
+            @Override
+            public WritableRaster getRaster() {
+                throw new IllegalStateException("pixels gone");
+            }
+        };
+        assertThrows(IllegalStateException.class, () -> ImageEncoder.encode(image, "jpeg", EncoderSettings.DEFAULT));
+        assertTrue(EncodeBufferPool.getRetainedBytes() > 0, "released to the pool");
+    }
+}
@@ -0,0 +1,132 @@
+package com.atom.cropimage.utils;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageFormatsTests {
+
+    private static byte[] encode(String formatName) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB), formatName, out), formatName);
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static ImageInputStream stream(byte[] data) {
+        return new MemoryCacheImageInputStream(new ByteArrayInputStream(data));
+    }
+
+    private static String detect(byte[] data) throws IOException {
+        try (ImageInputStream iis = stream(data)) {
+            return ImageFormats.detect(iis);
+        }
+    }
+
+    @Test
+    void encodedImagesAreDetected() throws IOException {
+        assertEquals("jpeg", detect(encode("jpeg")));
+        assertEquals("png", detect(encode("png")));
+        assertEquals("gif", detect(encode("gif")));
+        assertEquals("bmp", detect(encode("bmp")));
+    }
+
+    @Test
+    void tiffIsDetectedInBothByteOrders() throws IOException {
+        assertEquals("tiff", detect(bytes('I', 'I', 0x2A, 0x00, 8, 0, 0, 0)));
+        assertEquals("tiff", detect(bytes('M', 'M', 0x00, 0x2A, 0, 0, 0, 8)));
+        assertNull(detect(bytes('I', 'I', 0x00, 0x2A, 8, 0, 0, 0)), "byte order and magic number disagree");
+    }
+
+    @Test
+    void webpNeedsTheFormOfARiffFile() throws IOException {
+        assertEquals("webp", detect(bytes('R', 'I', 'F', 'F', 0x24, 0, 0, 0, 'W', 'E', 'B', 'P', 'V', 'P', '8', ' ')));
+        assertNull(detect(bytes('R', 'I', 'F', 'F', 0x24, 0, 0, 0, 'W', 'A', 'V', 'E', 'f', 'm', 't', ' ')), "a wav file");
+    }
+
+    @Test
+    void unknownAndShortInputIsNotDetected() throws IOException {
+        assertNull(detect("<svg xmlns=\"http://www.w3.org/2000/svg\"/>".getBytes(StandardCharsets.US_ASCII)));
+        assertNull(detect(new byte[0]));
+        assertNull(detect(bytes(0xFF, 0xD8)), "a truncated jpeg signature");
+        assertNull(detect(bytes('R', 'I', 'F', 'F', 0x24, 0, 0, 0, 'W', 'E')), "a truncated webp signature");
+        assertEquals("bmp", detect(bytes('B', 'M')), "the whole bmp signature");
+    }
+
+    @Test
+    void detectLeavesTheStreamPositionUnchanged() throws IOException {
+        byte[] png = encode("png");
+        try (ImageInputStream iis = stream(png)) {
+            iis.skipBytes(3);
+            assertNull(ImageFormats.detect(iis), "sniffed from the current position");
+            assertEquals(3, iis.getStreamPosition());
+            iis.seek(0);
+            assertEquals("png", ImageFormats.detect(iis));
+            assertEquals(0, iis.getStreamPosition());
+            assertEquals(png[0], (byte) iis.read());
+        }
+    }
+
+    @Test
+    void aReleasedReaderIsReusedOnTheSameThread() throws Exception {
+        byte[] png = encode("png");
+        ImageReader first;
+        try (ImageInputStream iis = stream(png)) {
+            first = ImageFormats.reader(iis);
+            first.setInput(iis);
+            assertEquals(8, first.read(0).getWidth());
+        }
+        ImageFormats.release(first);
+        assertNull(first.getInput(), "reset when released");
+
+        try (ImageInputStream iis = stream(png)) {
+            ImageReader second = ImageFormats.reader(iis);
+            assertSame(first, second);
+            ImageReader nested = ImageFormats.reader(iis);
+            assertNotSame(second, nested, "a reader in use is not handed out twice");
+            ImageFormats.release(nested);
+            ImageFormats.release(second);
+        }
+
+        ImageReader[] otherThread = new ImageReader[1];
+        Thread thread = new Thread(() -> {
+            try (ImageInputStream iis = stream(png)) {
+                otherThread[0] = ImageFormats.reader(iis);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertNotSame(first, otherThread[0], "readers are kept per thread");
+    }
+
+    @Test
+    void formatNamesAndMimeTypes() throws IOException {
+        try (ImageInputStream iis = stream(encode("jpeg"))) {
+            assertEquals("jpeg", ImageFormats.formatName(iis).toLowerCase(Locale.ROOT));
+        }
+        assertEquals("image/jpeg", ImageFormats.mimeType("jpg"));
+        assertEquals("image/png", ImageFormats.mimeType("PNG"));
+        assertNull(ImageFormats.mimeType("svg"));
+        assertThrows(IOException.class, () -> ImageFormats.writer("svg"));
+    }
+}
@@ -0,0 +1,267 @@
+package com.atom.cropimage.utils;
+
+import com.atom.cropimage.resample.PixelBufferPool;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.RasterFormatException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageScaleUtilTests {
+
+    private static BufferedImage randomImage(int width, int height, long seed) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(seed);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    private static byte[] encode(BufferedImage image, String formatName) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, formatName, out), formatName);
+        return out.toByteArray();
+    }
+
+    private static ImageInputStream stream(byte[] encoded) {
+        return new MemoryCacheImageInputStream(new ByteArrayInputStream(encoded));
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y), x + "," + y);
+            }
+        }
+    }
+
+    private static final String GIF_IMAGE_METADATA = "javax_imageio_gif_image_1.0";
+    private static final String[] DISPOSAL_METHODS = {"none", "doNotDispose", "restoreToBackgroundColor"};
+
+    private static Color frameColor(int i) {
+        return new Color(i * 8 % 256, 255 - i * 8 % 256, i * 37 % 256);
+    }
+
+    private static int delay(int i) {
+        return i % 5 * 10 + 10;
+    }
+
+    private static String disposal(int i) {
+        return DISPOSAL_METHODS[i % DISPOSAL_METHODS.length];
+    }
+
+    /**
+     * an animation of solid frames, frame i in frameColor(i) with delay(i) and disposal(i),
+     * the first frame is 200x150, a frame for which small is true 100x75 in the top left corner.
+     */
+    private static File animatedGif(Path directory, int frames, IntPredicate small) throws IOException {
+        File file = directory.resolve("animation.gif").toFile();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(file)) {
+            writer.setOutput(ios);
+            writer.prepareWriteSequence(null);
+            for (int i = 0; i < frames; i++) {
+                boolean isSmall = i > 0 && small.test(i);
+                BufferedImage frame = new BufferedImage(isSmall ? 100 : 200, isSmall ? 75 : 150, BufferedImage.TYPE_INT_RGB);
+                Graphics2D graphics = frame.createGraphics();
+                graphics.setColor(frameColor(i));
+                graphics.fillRect(0, 0, frame.getWidth(), frame.getHeight());
+                graphics.dispose();
+
+                IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(frame), null);
+                IIOMetadataNode tree = (IIOMetadataNode) metadata.getAsTree(GIF_IMAGE_METADATA);
+                IIOMetadataNode control = new IIOMetadataNode("GraphicControlExtension");
+                control.setAttribute("disposalMethod", disposal(i));
+                control.setAttribute("userInputFlag", "FALSE");
+                control.setAttribute("transparentColorFlag", "FALSE");
+                control.setAttribute("delayTime", String.valueOf(delay(i)));
+                control.setAttribute("transparentColorIndex", "0");
+                tree.appendChild(control);
+                metadata.mergeTree(GIF_IMAGE_METADATA, tree);
+                writer.writeToSequence(new IIOImage(frame, null, metadata), null);
+            }
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+        return file;
+    }
+
+    /**
+     * every frame of the cut animation is 100x80 in its own color, with its delay and disposal.
+     */
+    private static void assertCutAnimation(File file, int frames) throws IOException {
+        ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+        try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+            reader.setInput(iis);
+            assertEquals(frames, reader.getNumImages(true));
+            for (int i = 0; i < frames; i++) {
+                BufferedImage frame = reader.read(i);
+                assertEquals(100, frame.getWidth(), "frame " + i);
+                assertEquals(80, frame.getHeight(), "frame " + i);
+                assertEquals(frameColor(i).getRGB(), frame.getRGB(0, 0), "frame " + i);
+                assertEquals(frameColor(i).getRGB(), frame.getRGB(99, 79), "frame " + i);
+                IIOMetadataNode tree = (IIOMetadataNode) reader.getImageMetadata(i).getAsTree(GIF_IMAGE_METADATA);
+                IIOMetadataNode control = (IIOMetadataNode) tree.getElementsByTagName("GraphicControlExtension").item(0);
+                assertEquals(String.valueOf(delay(i)), control.getAttribute("delayTime"), "frame " + i);
+                assertEquals(disposal(i), control.getAttribute("disposalMethod"), "frame " + i);
+            }
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    @Test
+    void halfScaleDecodesEverySecondPixel() throws IOException {
+        BufferedImage source = randomImage(400, 300, 1);
+        try (DecodedImage decoded = ImageScaleUtil.readSubsampled(stream(encode(source, "png")), 0.5f)) {
+            assertEquals(2, decoded.getSubsampling());
+            assertEquals(400, decoded.getSourceWidth());
+            assertEquals(300, decoded.getSourceHeight());
+            BufferedImage image = decoded.getImage();
+            assertEquals(200, image.getWidth());
+            assertEquals(150, image.getHeight());
+            for (int y = 0; y < 150; y++) {
+                for (int x = 0; x < 200; x++) {
+                    assertEquals(source.getRGB(2 * x, 2 * y), image.getRGB(x, y), x + "," + y);
+                }
+            }
+            assertSame(image, ImageScaleUtil.scale(decoded, 0.5f), "nothing left to resample");
+        }
+    }
+
+    @Test
+    void oddSourceSizesKeepTheScaledSize() throws IOException {
+        try (DecodedImage decoded = ImageScaleUtil.readSubsampled(stream(encode(randomImage(401, 301, 2), "png")), 0.25f)) {
+            assertEquals(4, decoded.getSubsampling());
+            assertEquals(101, decoded.getImage().getWidth());
+            assertEquals(76, decoded.getImage().getHeight());
+            BufferedImage scaled = ImageScaleUtil.scale(decoded, 0.25f);
+            assertEquals(100, scaled.getWidth());
+            assertEquals(75, scaled.getHeight());
+        }
+    }
+
+    @Test
+    void scalesAboveHalfDecodeEveryPixel() throws IOException {
+        try (DecodedImage decoded = ImageScaleUtil.readSubsampled(stream(encode(randomImage(400, 300, 3), "png")), 0.6f)) {
+            assertEquals(1, decoded.getSubsampling());
+            assertEquals(400, decoded.getImage().getWidth());
+            BufferedImage scaled = ImageScaleUtil.scale(decoded, 0.6f);
+            assertEquals(240, scaled.getWidth());
+            assertEquals(180, scaled.getHeight());
+        }
+    }
+
+    @Test
+    void jpegDecodesIntoARecycledPoolBuffer() throws IOException {
+        PixelBufferPool.clear();
+        byte[] jpeg = encode(randomImage(1200, 900, 4), "jpeg");
+        byte[] first;
+        try (DecodedImage decoded = ImageScaleUtil.readSubsampled(stream(jpeg), 0.5f)) {
+            assertEquals(BufferedImage.TYPE_3BYTE_BGR, decoded.getImage().getType());
+            first = ((DataBufferByte) decoded.getImage().getRaster().getDataBuffer()).getData();
+            ImageScaleUtil.recycle(decoded.getImage());
+        }
+        assertTrue(PixelBufferPool.getRetainedBytes() >= first.length);
+        try (DecodedImage decoded = ImageScaleUtil.readSubsampled(stream(jpeg), 0.5f)) {
+            assertSame(first, ((DataBufferByte) decoded.getImage().getRaster().getDataBuffer()).getData());
+            assertEquals(600, decoded.getImage().getWidth());
+            assertEquals(450, decoded.getImage().getHeight());
+        }
+    }
+
+    @Test
+    void theDecodeBudgetIsHeldUntilClose() throws IOException {
+        ByteBudget budget = ImageScaleUtil.getDecodeBudget();
+        int available = budget.getAvailable();
+        DecodedImage decoded = ImageScaleUtil.readSubsampled(stream(encode(randomImage(400, 300, 5), "png")), 0.5f);
+        assertTrue(budget.getAvailable() < available);
+        decoded.close();
+        assertEquals(available, budget.getAvailable());
+    }
+
+    @Test
+    void onlyTheRegionIsDecoded() throws IOException {
+        BufferedImage source = randomImage(400, 300, 6);
+        Rectangle region = new Rectangle(50, 40, 120, 90);
+        try (DecodedImage decoded = ImageScaleUtil.readSubsampled(stream(encode(source, "png")), region, (width, height) -> 1)) {
+            assertEquals(120, decoded.getSourceWidth(), "the region is the source");
+            assertEquals(90, decoded.getSourceHeight());
+            assertSamePixels(source.getSubimage(50, 40, 120, 90), decoded.getImage());
+        }
+    }
+
+    @Test
+    void aRegionOutsideTheImageIsRejected() throws IOException {
+        byte[] png = encode(randomImage(400, 300, 7), "png");
+        assertThrows(RasterFormatException.class,
+                () -> ImageScaleUtil.readSubsampled(stream(png), new Rectangle(350, 0, 100, 100), (width, height) -> 1));
+    }
+
+    @Test
+    void readerImageRegionReturnsCompactCrops() throws IOException {
+        BufferedImage source = randomImage(400, 300, 8);
+        File file = Files.createTempDirectory("region").resolve("source.png").toFile();
+        ImageIO.write(source, "png", file);
+
+        BufferedImage[] frames = ImageScaleUtil.readerImageRegion(file, 10, 20, 64, 48);
+        assertEquals(1, frames.length);
+        assertSamePixels(source.getSubimage(10, 20, 64, 48), frames[0]);
+        assertNull(frames[0].getRaster().getParent(), "not a view of a larger raster");
+        assertEquals(64 * 48 * frames[0].getRaster().getNumDataElements(), frames[0].getRaster().getDataBuffer().getSize(), "exactly the crop");
+    }
+
+    @Test
+    void cutImageWritesTheCrop() throws Exception {
+        BufferedImage source = randomImage(400, 300, 9);
+        Path directory = Files.createTempDirectory("cut");
+        File sourceFile = directory.resolve("source.png").toFile();
+        ImageIO.write(source, "png", sourceFile);
+
+        ImageScaleUtil.cutImage(sourceFile, directory.resolve("crop.png").toFile(), 100, 50, 128, 96);
+        assertSamePixels(source.getSubimage(100, 50, 128, 96), ImageIO.read(directory.resolve("crop.png").toFile()));
+    }
+
+    @Test
+    void cutImageStreamsEveryFrameWithItsTiming() throws Exception {
+        Path directory = Files.createTempDirectory("cut-gif");
+        File source = animatedGif(directory, 40, i -> false);
+        ImageScaleUtil.cutImage(source, directory.resolve("crop.gif").toFile(), 20, 10, 100, 80);
+        assertCutAnimation(directory.resolve("crop.gif").toFile(), 40);
+    }
+
+    @Test
+    void smallFramesAreZoomedInOrder() throws Exception {
+        Path directory = Files.createTempDirectory("cut-gif-small");
+        File source = animatedGif(directory, 20, i -> i % 3 != 0);
+        ImageScaleUtil.cutImage(source, directory.resolve("crop.gif").toFile(), 20, 10, 100, 80);
+        assertCutAnimation(directory.resolve("crop.gif").toFile(), 20);
+    }
+}
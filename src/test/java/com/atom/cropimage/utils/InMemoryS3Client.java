@@ -0,0 +1,74 @@
+package com.atom.cropimage.utils;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * local S3 stand-in for listing, keys are kept sorted like S3 does and listed in pages with continuation tokens.
+ *
+ * @author Atom
+ */
+class InMemoryS3Client implements S3Client {
+
+    private final NavigableMap<String, Long> objects = new ConcurrentSkipListMap<>();
+    private final AtomicInteger listCalls = new AtomicInteger();
+
+    void putObject(String key, long size) {
+        objects.put(key, size);
+    }
+
+    int getListCalls() {
+        return listCalls.get();
+    }
+
+    @Override
+    public ListObjectsV2Response listObjectsV2(ListObjectsV2Request request) {
+        listCalls.incrementAndGet();
+        String prefix = request.prefix() == null ? "" : request.prefix();
+        String delimiter = request.delimiter();
+        int maxKeys = request.maxKeys() == null ? 1000 : request.maxKeys();
+        List<S3Object> contents = new ArrayList<>();
+        List<CommonPrefix> commonPrefixes = new ArrayList<>();
+        // the continuation token is the last key returned, exclusive
+        String cursor = request.continuationToken();
+        while (true) {
+            Map.Entry<String, Long> entry = cursor == null ? objects.ceilingEntry(prefix) : objects.higherEntry(cursor);
+            if (entry == null || !entry.getKey().startsWith(prefix)) {
+                return ListObjectsV2Response.builder().contents(contents).commonPrefixes(commonPrefixes).build();
+            }
+            if (contents.size() + commonPrefixes.size() == maxKeys) {
+                return ListObjectsV2Response.builder().contents(contents).commonPrefixes(commonPrefixes)
+                        .nextContinuationToken(cursor).build();
+            }
+            String key = entry.getKey();
+            int index = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+            if (index >= 0) {
+                String commonPrefix = key.substring(0, index + delimiter.length());
+                commonPrefixes.add(CommonPrefix.builder().prefix(commonPrefix).build());
+                cursor = objects.floorKey(commonPrefix + Character.MAX_VALUE);
+            } else {
+                contents.add(S3Object.builder().key(key).size(entry.getValue()).build());
+                cursor = key;
+            }
+        }
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,129 @@
+package com.atom.cropimage.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RenditionCacheTests {
+
+    private static byte[] value(int size, int fill) {
+        byte[] value = new byte[size];
+        Arrays.fill(value, (byte) fill);
+        return value;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static long directoryBytes(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    @Test
+    void leastRecentlyUsedEntriesMoveFromMemoryToDisk() throws IOException {
+        Path directory = Files.createTempDirectory("rendition-cache");
+        try (RenditionCache cache = new RenditionCache(1000, 3000, 400, directory)) {
+            cache.put("a", value(300, 1));
+            cache.put("b", value(300, 2));
+            cache.put("c", value(300, 3));
+            assertNotNull(cache.get("a"));
+            // b is now the least recently used
+            cache.put("d", value(300, 4));
+
+            assertFalse(cache.inMemory("b"));
+            ByteBuffer b = cache.get("b");
+            assertTrue(b.isReadOnly());
+            assertArrayEquals(value(300, 2), bytes(b));
+            assertTrue(cache.inMemory("a"));
+            assertArrayEquals(value(300, 4), bytes(cache.get("d")));
+            assertEquals(300, directoryBytes(directory));
+        }
+        assertEquals(0, directoryBytes(directory), "files are deleted on close");
+    }
+
+    @Test
+    void bothTiersAreBoundedByBytes() throws IOException {
+        Path directory = Files.createTempDirectory("rendition-cache");
+        try (RenditionCache cache = new RenditionCache(1000, 3000, 400, directory)) {
+            for (int i = 0; i < 20; i++) {
+                cache.put("k" + i, value(300, i));
+            }
+            // 3 entries fit in memory, 10 on disk, the oldest are gone
+            for (int i = 0; i < 20; i++) {
+                boolean inMemory = cache.inMemory("k" + i);
+                ByteBuffer cached = cache.get("k" + i);
+                if (i < 7) {
+                    assertNull(cached, "k" + i);
+                } else {
+                    assertEquals(i >= 17, inMemory, "k" + i);
+                    assertArrayEquals(value(300, i), bytes(cached));
+                }
+            }
+            assertEquals(3000, directoryBytes(directory));
+        }
+    }
+
+    @Test
+    void entriesLargerThanMaxEntryBytesAreNotCached() throws IOException {
+        try (RenditionCache cache = new RenditionCache(1000, 3000, 400, Files.createTempDirectory("rendition-cache"))) {
+            cache.put("large", value(401, 1));
+            assertNull(cache.get("large"));
+            cache.put("limit", value(400, 2));
+            assertArrayEquals(value(400, 2), bytes(cache.get("limit")));
+        }
+        assertThrows(IllegalArgumentException.class, () -> new RenditionCache(1000, 3000, 1001, Files.createTempDirectory("rendition-cache")));
+    }
+
+    @Test
+    void keyPartsCannotRunIntoEachOther() {
+        assertNotEquals(RenditionCache.key("a b", "c"), RenditionCache.key("a", "b c"));
+        assertNotEquals(RenditionCache.key("a", ""), RenditionCache.key("", "a"));
+    }
+
+    @Test
+    void concurrentPutsAndGetsSeeCompleteEntries() throws Exception {
+        Path directory = Files.createTempDirectory("rendition-cache");
+        try (RenditionCache cache = new RenditionCache(2000, 5000, 400, directory)) {
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            CyclicBarrier start = new CyclicBarrier(8);
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                Random random = new Random(t);
+                workers.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 5000; i++) {
+                        int k = random.nextInt(60);
+                        ByteBuffer cached = cache.get("k" + k);
+                        if (cached == null) {
+                            cache.put("k" + k, value(100 + k, k));
+                        } else {
+                            assertArrayEquals(value(100 + k, k), bytes(cached), "k" + k);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get(30, TimeUnit.SECONDS);
+            }
+            executor.shutdown();
+            assertTrue(directoryBytes(directory) <= 5000);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.atom.cropimage.utils;
+
+import com.atom.cropimage.utils.ScaleMetrics.Stage;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScaleMetricsTests {
+
+    private static final long READ_MILLIS = 40;
+
+    /**
+     * a new registry per test, the meters of the global registry start at 0 on it.
+     */
+    private SimpleMeterRegistry registry;
+
+    @BeforeEach
+    void addRegistry() {
+        registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+    }
+
+    @AfterEach
+    void removeRegistry() {
+        Metrics.removeRegistry(registry);
+    }
+
+    private Timer timer(Stage stage) {
+        return registry.get("scale.stage.duration").tag("stage", stage.name().toLowerCase(Locale.ROOT)).timer();
+    }
+
+    private double bytesIn() {
+        return registry.get("scale.transfer.bytes").tag("direction", "in").counter().count();
+    }
+
+    private double errors(Stage stage) {
+        return registry.get("scale.stage.errors").tag("stage", stage.name().toLowerCase(Locale.ROOT)).counter().count();
+    }
+
+    /**
+     * a body that takes READ_MILLIS per read, like a slow connection.
+     */
+    private static InputStream slowBody(byte[] data) {
+        return new FilterInputStream(new ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    Thread.sleep(READ_MILLIS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return super.read(b, off, Math.min(len, 100));
+            }
+        };
+    }
+
+    @Test
+    void bodyReadsAreGetTimeNotTimeOfTheStageReadingThem() throws IOException {
+        long getStart = ScaleMetrics.start(Stage.GET);
+        try (InputStream body = ScaleMetrics.timedBody(slowBody(new byte[250]), getStart)) {
+            long decodeStart = ScaleMetrics.start(Stage.DECODE);
+            byte[] chunk = new byte[1000];
+            int read = 0;
+            // 3 reads of data, stop before the end of the body
+            for (int i = 0; i < 3; i++) {
+                read += body.read(chunk);
+            }
+            assertEquals(250, read);
+            ScaleMetrics.stop(Stage.DECODE, decodeStart, true);
+            assertEquals(0, timer(Stage.GET).count(), "recorded on close");
+        }
+
+        assertEquals(1, timer(Stage.GET).count());
+        double get = timer(Stage.GET).totalTime(TimeUnit.NANOSECONDS);
+        double decode = timer(Stage.DECODE).totalTime(TimeUnit.NANOSECONDS);
+        assertTrue(get >= TimeUnit.MILLISECONDS.toNanos(3 * READ_MILLIS), "get " + get);
+        assertTrue(decode < TimeUnit.MILLISECONDS.toNanos(READ_MILLIS), "decode " + decode);
+        assertEquals(250.0, bytesIn(), "bytes actually read");
+    }
+
+    @Test
+    void aFailedReadFailsTheGet() {
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connection reset");
+            }
+        };
+        assertThrows(IOException.class, () -> {
+            try (InputStream body = ScaleMetrics.timedBody(failing, ScaleMetrics.start(Stage.GET))) {
+                body.read();
+            }
+        });
+        assertEquals(1.0, errors(Stage.GET));
+        assertEquals(0, timer(Stage.GET).count());
+    }
+}
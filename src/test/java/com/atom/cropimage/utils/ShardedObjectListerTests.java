@@ -0,0 +1,108 @@
+package com.atom.cropimage.utils;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedObjectListerTests {
+
+    /**
+     * uneven synthetic keyspace: objects at the root, one huge prefix, many small ones and nested ones.
+     */
+    private static InMemoryS3Client syntheticBucket(Set<String> keys) {
+        InMemoryS3Client client = new InMemoryS3Client();
+        Random random = new Random(42);
+        for (int i = 0; i < 50; i++) {
+            keys.add("root-" + i + ".jpg");
+        }
+        for (int i = 0; i < 5000; i++) {
+            keys.add("big/" + i + ".jpg");
+        }
+        for (int p = 0; p < 40; p++) {
+            for (int i = 0; i < random.nextInt(30); i++) {
+                keys.add("small-" + p + "/" + i + ".png");
+            }
+        }
+        for (int i = 0; i < 1200; i++) {
+            keys.add("nested/" + (i % 7) + "/" + i + ".gif");
+        }
+        keys.forEach(key -> client.putObject(key, key.length()));
+        return client;
+    }
+
+    private static Set<String> drain(Iterator<S3Object> objects) {
+        Set<String> listed = new HashSet<>();
+        List<String> all = new ArrayList<>();
+        objects.forEachRemaining(object -> all.add(object.key()));
+        listed.addAll(all);
+        assertEquals(all.size(), listed.size(), "no object is listed twice");
+        return listed;
+    }
+
+    @Test
+    void listByDelimiterListsEveryObjectOnce() {
+        Set<String> keys = new HashSet<>();
+        InMemoryS3Client client = syntheticBucket(keys);
+        for (int depth = 0; depth <= 3; depth++) {
+            assertEquals(keys, drain(new ShardedObjectLister(client, 8).listByDelimiter("bucket", "/", depth)));
+        }
+    }
+
+    @Test
+    void listPrefixesListsOnlyTheGivenShards() {
+        Set<String> keys = new HashSet<>();
+        InMemoryS3Client client = syntheticBucket(keys);
+        Set<String> listed = drain(new ShardedObjectLister(client, 4).listPrefixes("bucket", Arrays.asList("big/", "nested/")));
+        assertEquals(6200, listed.size());
+        assertTrue(listed.stream().allMatch(key -> key.startsWith("big/") || key.startsWith("nested/")));
+    }
+
+    @Test
+    void emptyBucketEndsTheIteration() {
+        InMemoryS3Client client = new InMemoryS3Client();
+        assertTrue(drain(new ShardedObjectLister(client, 2).listByDelimiter("bucket", "/", 1)).isEmpty());
+        assertTrue(drain(new ShardedObjectLister(client, 2).listPrefixes("bucket", Collections.emptyList())).isEmpty());
+    }
+
+    /**
+     * a shard may finish before the next prefix is submitted, that must not end the listing early.
+     */
+    @Test
+    void shardsFinishingDuringSubmissionDoNotEndTheListing() {
+        InMemoryS3Client client = new InMemoryS3Client();
+        List<String> prefixes = new ArrayList<>();
+        for (int p = 0; p < 20; p++) {
+            prefixes.add("p-" + p + "/");
+            client.putObject("p-" + p + "/image.jpg", 1);
+        }
+        for (int run = 0; run < 200; run++) {
+            assertEquals(20, drain(new ShardedObjectLister(client, 4).listPrefixes("bucket", prefixes)).size());
+        }
+    }
+
+    @Test
+    void closeStopsAnAbandonedListing() throws InterruptedException {
+        Set<String> keys = new HashSet<>();
+        InMemoryS3Client client = syntheticBucket(keys);
+        ShardedObjectLister.Listing listing = new ShardedObjectLister(client, 4, 10).listByDelimiter("bucket", "/", 1);
+        for (int i = 0; i < 5; i++) {
+            listing.next();
+        }
+        listing.close();
+        assertFalse(listing.hasNext());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (shardThreadsAlive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(shardThreadsAlive(), "the shard threads blocked on the full queue are stopped");
+    }
+
+    private static boolean shardThreadsAlive() {
+        return Thread.getAllStackTraces().keySet().stream().anyMatch(thread -> thread.getName().startsWith("s3-list-shard-"));
+    }
+}